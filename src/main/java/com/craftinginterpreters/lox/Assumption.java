@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Something an {@link Optimization} relies on staying true, such as a
+ * global function never being reassigned. Invalidating it invalidates
+ * every optimization registered on it, so they don't have to check it on
+ * every execution.
+ */
+final class Assumption {
+
+    private final String name;
+    private volatile boolean valid = true;
+    private List<Optimization> dependents = new ArrayList<>();
+
+    Assumption(String name) {
+        this.name = name;
+    }
+
+    boolean isValid() {
+        return valid;
+    }
+
+    synchronized void register(Optimization optimization) {
+        if (valid) {
+            dependents.add(optimization);
+        } else {
+            optimization.invalidate();
+        }
+    }
+
+    synchronized void invalidate() {
+        if (!valid) {
+            return;
+        }
+
+        valid = false;
+        dependents.forEach(Optimization::invalidate);
+        dependents = null;
+    }
+
+    @Override
+    public String toString() {
+        return name + (valid ? "" : " (invalid)");
+    }
+}
@@ -13,6 +13,7 @@ public class AstPrinter {
             case Expr.Grouping e -> visitGroupingExpr(e);
             case Expr.Literal e -> visitLiteralExpr(e);
             case Expr.Logical e -> visitLogicalExpr(e);
+            case Expr.Optimized e -> print(e.original());
             case Expr.Set e -> visitSetExpr(e);
             case Expr.Super e -> visitSuperExpr(e);
             case Expr.This e -> visitThisExpr(e);
@@ -28,6 +29,7 @@ public class AstPrinter {
             case Stmt.Expression s -> visitExpressionStmt(s);
             case Stmt.Function s -> visitFunctionStmt(s);
             case Stmt.If s -> visitIfStmt(s);
+            case Stmt.Optimized s -> print(s.original());
             case Stmt.Print s -> visitPrintStmt(s);
             case Stmt.Return s -> visitReturnStmt(s);
             case Stmt.Var s -> visitVarStmt(s);
@@ -0,0 +1,482 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the .loxc format: a resolved syntax tree keyed by the
+ * SHA-256 hash of the source it was compiled from. Loading one skips the
+ * scanner, parser and resolver entirely.
+ */
+class AstSerializer {
+
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int VERSION = 4;
+
+    private static final int NULL = 0;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private final Map<Expr, Environment.Slot> locals;
+
+    private AstSerializer(Map<Expr, Environment.Slot> locals) {
+        this.locals = locals;
+    }
+
+    static Path cachePath(Path source) {
+        String name = source.getFileName().toString();
+        if (name.endsWith(".lox")) {
+            return source.resolveSibling(name + "c");
+        }
+        return source.resolveSibling(name + ".loxc");
+    }
+
+    static byte[] hash(ByteBuffer source) {
+        MessageDigest digest = newDigest();
+        digest.update(source.duplicate());
+        return digest.digest();
+    }
+
+    static byte[] hash(byte[] source) {
+        return newDigest().digest(source);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256.
+        }
+    }
+
+    /**
+     * Returns the script stored at {@code path}, or null if there is no
+     * cache file or it was compiled from different source. Throws if the
+     * file is truncated or corrupt.
+     */
+    static CompiledScript load(Path path, byte[] hash) throws IOException {
+        byte[] file;
+        try {
+            file = Files.readAllBytes(path);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+
+        // Reading from memory makes available() the exact number of bytes
+        // left, which every length is checked against before it's used.
+        try ( DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            byte[] stored = new byte[in.readUnsignedByte()];
+            in.readFully(stored);
+            if (!Arrays.equals(stored, hash)) {
+                return null;
+            }
+
+            Map<Expr, Environment.Slot> locals = new IdentityHashMap<>();
+            List<Stmt> statements = new AstSerializer(locals).readStmts(in);
+            if (in.available() != 0) {
+                throw new IOException("Trailing bytes after the script.");
+            }
+            return new CompiledScript(statements, locals);
+        }
+        catch (RuntimeException | StackOverflowError e) {
+            // A corrupt tag can nest nodes deeper than any real script or
+            // build one that a record constructor rejects.
+            throw new IOException("Corrupt cache file.", e);
+        }
+    }
+
+    static void store(Path path, byte[] hash, CompiledScript script)
+            throws IOException {
+        // Write next to the target and move it into place so that a
+        // concurrent reader never sees a half-written file.
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+                path.getFileName().toString(), ".tmp");
+        try {
+            try ( DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeByte(hash.length);
+                out.write(hash);
+                new AstSerializer(script.locals())
+                        .writeStmts(out, script.statements());
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writeStmts(DataOutputStream out, List<? extends Stmt> stmts)
+            throws IOException {
+        out.writeInt(stmts.size());
+        for (Stmt stmt : stmts) {
+            write(out, stmt);
+        }
+    }
+
+    private void writeExprs(DataOutputStream out, List<Expr> exprs)
+            throws IOException {
+        out.writeInt(exprs.size());
+        for (Expr expr : exprs) {
+            write(out, expr);
+        }
+    }
+
+    private void write(DataOutputStream out, Stmt stmt) throws IOException {
+        if (stmt == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        switch (stmt) {
+            case Stmt.Block s -> {
+                out.writeByte(1);
+                writeStmts(out, s.statements());
+            }
+            case Stmt.Class s -> {
+                out.writeByte(2);
+                write(out, s.name());
+                write(out, s.superclass());
+                writeStmts(out, s.methods());
+            }
+            case Stmt.Expression s -> {
+                out.writeByte(3);
+                write(out, s.expression());
+            }
+            case Stmt.Function s -> {
+                out.writeByte(4);
+                writeFunction(out, s);
+            }
+            case Stmt.If s -> {
+                out.writeByte(5);
+                write(out, s.condition());
+                write(out, s.thenBranch());
+                write(out, s.elseBranch());
+            }
+            case Stmt.Optimized s -> {
+                // Optimized code only exists at run time.
+                write(out, s.original());
+            }
+            case Stmt.Print s -> {
+                out.writeByte(6);
+                write(out, s.expression());
+            }
+            case Stmt.Return s -> {
+                out.writeByte(7);
+                write(out, s.keyword());
+                write(out, s.value());
+            }
+            case Stmt.Var s -> {
+                out.writeByte(8);
+                write(out, s.name());
+                write(out, s.initializer());
+                out.writeBoolean(s.binding().isConstant());
+            }
+            case Stmt.While s -> {
+                out.writeByte(9);
+                write(out, s.keyword());
+                write(out, s.condition());
+                write(out, s.body());
+            }
+        }
+    }
+
+    private void writeFunction(DataOutputStream out, Stmt.Function function)
+            throws IOException {
+        write(out, function.name());
+        out.writeInt(function.params().size());
+        for (Token param : function.params()) {
+            write(out, param);
+        }
+        writeStmts(out, function.body());
+    }
+
+    private void write(DataOutputStream out, Expr expr) throws IOException {
+        if (expr == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        switch (expr) {
+            case Expr.Assign e -> {
+                out.writeByte(1);
+                write(out, e.name());
+                write(out, e.value());
+            }
+            case Expr.Binary e -> {
+                out.writeByte(2);
+                write(out, e.left());
+                write(out, e.operator());
+                write(out, e.right());
+            }
+            case Expr.Call e -> {
+                out.writeByte(3);
+                write(out, e.callee());
+                write(out, e.paren());
+                writeExprs(out, e.arguments());
+            }
+            case Expr.Get e -> {
+                out.writeByte(4);
+                write(out, e.object());
+                write(out, e.name());
+            }
+            case Expr.Grouping e -> {
+                out.writeByte(5);
+                write(out, e.expression());
+            }
+            case Expr.Literal e -> {
+                out.writeByte(6);
+                writeValue(out, e.value());
+            }
+            case Expr.Logical e -> {
+                out.writeByte(7);
+                write(out, e.left());
+                write(out, e.operator());
+                write(out, e.right());
+            }
+            case Expr.Optimized e -> {
+                // The original writes its own slot, if it has one.
+                write(out, e.original());
+                return;
+            }
+            case Expr.Set e -> {
+                out.writeByte(8);
+                write(out, e.object());
+                write(out, e.name());
+                write(out, e.value());
+            }
+            case Expr.Super e -> {
+                out.writeByte(9);
+                write(out, e.keyword());
+                write(out, e.method());
+            }
+            case Expr.This e -> {
+                out.writeByte(10);
+                write(out, e.keyword());
+            }
+            case Expr.Unary e -> {
+                out.writeByte(11);
+                write(out, e.operator());
+                write(out, e.right());
+            }
+            case Expr.Variable e -> {
+                out.writeByte(12);
+                write(out, e.name());
+            }
+        }
+
+        if (isVariableAccess(expr)) {
+            Environment.Slot slot = locals.get(expr);
+            out.writeInt(slot == null ? -1 : slot.depth());
+            if (slot != null) {
+                out.writeInt(slot.index());
+            }
+        }
+    }
+
+    private void write(DataOutputStream out, Token token) throws IOException {
+        out.writeByte(token.type().ordinal());
+        writeString(out, token.lexeme());
+        writeValue(out, token.literal());
+        out.writeInt(token.line());
+    }
+
+    private void writeValue(DataOutputStream out, Object value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(1);
+            out.writeBoolean((boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(2);
+            out.writeDouble((double) value);
+        } else if (value instanceof String) {
+            out.writeByte(3);
+            writeString(out, (String) value);
+        } else if (value instanceof Character) {
+            // The scanner keeps the character of single-character tokens.
+            out.writeByte(4);
+            out.writeChar((char) value);
+        } else {
+            throw new IOException("Cannot serialize literal " + value + ".");
+        }
+    }
+
+    private void writeString(DataOutputStream out, String string)
+            throws IOException {
+        // DataOutput.writeUTF() is limited to 64K, too small for literals.
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private List<Stmt> readStmts(DataInputStream in) throws IOException {
+        int size = readLength(in);
+        List<Stmt> stmts = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stmts.add(readStmt(in));
+        }
+        return stmts;
+    }
+
+    private List<Expr> readExprs(DataInputStream in) throws IOException {
+        int size = readLength(in);
+        List<Expr> exprs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            exprs.add(readExpr(in));
+        }
+        return exprs;
+    }
+
+    private Stmt readStmt(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        return switch (tag) {
+            case NULL -> null;
+            case 1 -> new Stmt.Block(readStmts(in));
+            case 2 -> {
+                Token name = readToken(in);
+                Expr superclass = readExpr(in);
+                if (superclass != null && !(superclass instanceof Expr.Variable)) {
+                    throw new IOException("Corrupt superclass.");
+                }
+                int size = readLength(in);
+                List<Stmt.Function> methods = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    if (in.readUnsignedByte() != 4) {
+                        throw new IOException("Corrupt method.");
+                    }
+                    methods.add(readFunction(in));
+                }
+                yield new Stmt.Class(name, (Expr.Variable) superclass, methods);
+            }
+            case 3 -> new Stmt.Expression(readExpr(in));
+            case 4 -> readFunction(in);
+            case 5 -> new Stmt.If(readExpr(in), readStmt(in), readStmt(in));
+            case 6 -> new Stmt.Print(readExpr(in));
+            case 7 -> new Stmt.Return(readToken(in), readExpr(in));
+            case 8 -> {
+                Stmt.Var var = new Stmt.Var(readToken(in), readExpr(in));
+                if (in.readBoolean()) {
+                    var.binding().markConstant();
+                }
+                yield var;
+            }
+            case 9 -> new Stmt.While(readToken(in), readExpr(in),
+                    readStmt(in));
+            default -> throw new IOException("Corrupt statement tag " + tag + ".");
+        };
+    }
+
+    private Stmt.Function readFunction(DataInputStream in) throws IOException {
+        Token name = readToken(in);
+        int arity = readLength(in);
+        List<Token> params = new ArrayList<>(arity);
+        for (int i = 0; i < arity; i++) {
+            params.add(readToken(in));
+        }
+        return new Stmt.Function(name, params, readStmts(in));
+    }
+
+    private Expr readExpr(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        Expr expr = switch (tag) {
+            case NULL -> null;
+            case 1 -> new Expr.Assign(readToken(in), readExpr(in));
+            case 2 -> new Expr.Binary(readExpr(in), readToken(in), readExpr(in));
+            case 3 -> new Expr.Call(readExpr(in), readToken(in), readExprs(in));
+            case 4 -> new Expr.Get(readExpr(in), readToken(in));
+            case 5 -> new Expr.Grouping(readExpr(in));
+            case 6 -> new Expr.Literal(readValue(in));
+            case 7 -> new Expr.Logical(readExpr(in), readToken(in), readExpr(in));
+            case 8 -> new Expr.Set(readExpr(in), readToken(in), readExpr(in));
+            case 9 -> new Expr.Super(readToken(in), readToken(in));
+            case 10 -> new Expr.This(readToken(in));
+            case 11 -> new Expr.Unary(readToken(in), readExpr(in));
+            case 12 -> new Expr.Variable(readToken(in));
+            default -> throw new IOException("Corrupt expression tag " + tag + ".");
+        };
+
+        if (isVariableAccess(expr)) {
+            int depth = in.readInt();
+            if (depth >= 0) {
+                int index = in.readInt();
+                if (index < 0) {
+                    throw new IOException("Corrupt slot index " + index + ".");
+                }
+                locals.put(expr, new Environment.Slot(depth, index));
+            }
+        }
+        return expr;
+    }
+
+    // The nodes the resolver may record a slot for. Locals are written as
+    // their depth and index, globals as a depth of -1.
+    private static boolean isVariableAccess(Expr expr) {
+        return expr instanceof Expr.Variable || expr instanceof Expr.Assign
+                || expr instanceof Expr.This || expr instanceof Expr.Super;
+    }
+
+    private Token readToken(DataInputStream in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= tokenTypes.length) {
+            throw new IOException("Corrupt token type " + ordinal + ".");
+        }
+        return new Token(tokenTypes[ordinal], readString(in), readValue(in), in.readInt());
+    }
+
+    private Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        return switch (tag) {
+            case NULL -> null;
+            case 1 -> in.readBoolean();
+            case 2 -> in.readDouble();
+            case 3 -> readString(in);
+            case 4 -> in.readChar();
+            default -> throw new IOException("Corrupt literal tag " + tag + ".");
+        };
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Every element of a list and every byte of a string takes at least one
+    // byte of input, so a length past what's left can only come from a
+    // truncated or corrupt file. Checking it first keeps a bad length from
+    // allocating a huge array.
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt length " + length + ".");
+        }
+        return length;
+    }
+}
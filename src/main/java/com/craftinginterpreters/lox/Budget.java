@@ -0,0 +1,179 @@
+package com.craftinginterpreters.lox;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * The fuel and memory an execution may use, as set by --fuel and
+ * --memory, shared by an interpreter and everything forked from it.
+ * Running out of either is a runtime error.
+ *
+ * Fuel is spent one unit per safepoint poll, that is per loop iteration
+ * and per function call. Code without either runs once per statement of
+ * the script at most, so that is enough to bound how long it runs.
+ *
+ * Memory is what the script keeps: what the heap held after the last
+ * garbage collection beyond what it held when the budget was set, plus
+ * estimates of what was made since: arrays and maps as they grow, long
+ * strings, and the environments of the calls running. Instances,
+ * closures and short strings aren't charged, since most go as garbage;
+ * the heap counts the ones that are kept after the next collection. The
+ * budget is checked on each charge and at safepoints, and garbage is
+ * never collected just to check it, so a script can go over its limit by
+ * what it keeps between two collections. The heap is shared, so with
+ * several budgets at once each counts what all the scripts keep.
+ *
+ * Interpreters take fuel in batches, so a poll only decrements the
+ * interpreter's own counter.
+ */
+final class Budget {
+
+    /** How much fuel an interpreter takes at a time. */
+    static final int BATCH = 64;
+
+    static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    // Rough sizes of the script's objects on a 64-bit JVM with compressed
+    // references. Characters are counted at two bytes each.
+    static final long ENVIRONMENT_BYTES = 40;
+    static final long SLOT_BYTES = 4;
+    static final long STRING_BYTES = 40;
+    static final long CHAR_BYTES = 2;
+
+    private final AtomicLong fuel;
+    private final boolean limitsFuel;
+    private final long memoryLimit;
+    private final boolean limitsMemory;
+    // The heap in use when the budget was set, garbage and all, which the
+    // script isn't charged for.
+    private final long baseline;
+    // What was charged since the last collection, and the count of
+    // collections when it was last reset.
+    private final AtomicLong charged = new AtomicLong();
+    private volatile long seen;
+
+    Budget(long fuel, long memory) {
+        this.fuel = new AtomicLong(fuel);
+        this.limitsFuel = fuel != Long.MAX_VALUE;
+        this.memoryLimit = memory;
+        this.limitsMemory = memory != Long.MAX_VALUE;
+        this.baseline = limitsMemory ? usedHeap() : 0;
+        this.seen = limitsMemory ? Heap.collections.get() : 0;
+    }
+
+    boolean isLimited() {
+        return this != UNLIMITED;
+    }
+
+    boolean limitsMemory() {
+        return limitsMemory;
+    }
+
+    /**
+     * Takes up to a batch of fuel, returning how much; 0 if none is left.
+     * Without a limit on fuel, that is as many polls as there are between
+     * safepoints without a budget.
+     */
+    int take() {
+        if (!limitsFuel) {
+            return Scheduler.TICKS;
+        }
+
+        long left;
+        int taken;
+        do {
+            left = fuel.get();
+            taken = (int) Math.min(left, BATCH);
+        } while (taken > 0 && !fuel.compareAndSet(left, left - taken));
+        return taken;
+    }
+
+    /**
+     * Charges {@code bytes}, returning whether the memory in use, with the
+     * caller's {@code frames} bytes of call frames, is still in limits.
+     */
+    boolean allocate(long bytes, long frames) {
+        charged.addAndGet(bytes);
+        return check(frames);
+    }
+
+    /**
+     * Whether the memory in use, with the caller's {@code frames} bytes of
+     * call frames, is in limits.
+     */
+    boolean check(long frames) {
+        long count = Heap.collections.get();
+        if (count != seen) {
+            // The collection has seen what was charged before it. Two
+            // threads resetting at once may drop a charge made between.
+            seen = count;
+            charged.set(0);
+        }
+        return Math.max(0, Heap.live - baseline) + charged.get() + frames
+                <= memoryLimit;
+    }
+
+    /**
+     * What the heap held after the last collection, and how many there
+     * have been, as the collectors report them. Only a budget that limits
+     * memory listens for them.
+     */
+    private static final class Heap {
+
+        static final AtomicLong collections = new AtomicLong();
+        static volatile long live = usedHeap();
+
+        static {
+            Set<String> heap = new HashSet<>();
+            for (MemoryPoolMXBean pool
+                    : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heap.add(pool.getName());
+                }
+            }
+            for (GarbageCollectorMXBean collector
+                    : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter emitter) {
+                    emitter.addNotificationListener((notification, unused) ->
+                            collected(notification, heap), null, null);
+                }
+            }
+        }
+    }
+
+    private static void collected(Notification notification,
+            Set<String> heap) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo
+                .GARBAGE_COLLECTION_NOTIFICATION)) {
+            return;
+        }
+
+        Map<String, MemoryUsage> after = GarbageCollectionNotificationInfo
+                .from((CompositeData) notification.getUserData())
+                .getGcInfo().getMemoryUsageAfterGc();
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : after.entrySet()) {
+            if (heap.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        Heap.live = used;
+        Heap.collections.incrementAndGet();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,251 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/**
+ * A scanner that works directly on UTF-8 bytes, usually a memory-mapped
+ * script file. Everything outside string literals is ASCII, so it is
+ * lexed without decoding, and only string literals are decoded. Unlike
+ * {@link Scanner}, the source is never copied into the Java heap.
+ *
+ * It produces the same tokens and errors as {@link Scanner}.
+ */
+class ByteScanner implements TokenSource {
+
+    // Lexemes for the single-character tokens, so they aren't allocated
+    // again and again.
+    private static final String[] characters = new String[128];
+
+    static {
+        for (char c = 0; c < characters.length; c++) {
+            characters[c] = String.valueOf(c);
+        }
+    }
+
+    private final ByteBuffer source;
+    private final int length;
+    private final ErrorReporter errors;
+    private int start = 0;
+    private int current = 0;
+    private int line = 1;
+
+    ByteScanner(ByteBuffer source, ErrorReporter errors) {
+        this.source = source;
+        this.length = source.limit();
+        this.errors = errors;
+    }
+
+    static ByteBuffer map(Path path) throws IOException {
+        try ( FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map.");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+    }
+
+    @Override
+    public Token getNextToken() {
+        for (;;) {
+            if (isAtEnd()) {
+                return new Token(EOF, "", null, line);
+            }
+
+            start = current;
+            Token token = scanToken();
+            if (token != null) {
+                return token;
+            }
+        }
+    }
+
+    private Token scanToken() {
+        char c = advance();
+        return switch (c) {
+            case '(' -> addToken(LEFT_PAREN, c);
+            case ')' -> addToken(RIGHT_PAREN, c);
+            case '{' -> addToken(LEFT_BRACE, c);
+            case '}' -> addToken(RIGHT_BRACE, c);
+            case ',' -> addToken(COMMA, c);
+            case '.' -> addToken(DOT, c);
+            case '-' -> addToken(MINUS, c);
+            case '+' -> addToken(PLUS, c);
+            case ';' -> addToken(SEMICOLON, c);
+            case '*' -> addToken(STAR, c);
+            case '!' -> addToken(match('=') ? BANG_EQUAL : BANG, c);
+            case '=' -> addToken(match('=') ? EQUAL_EQUAL : EQUAL, c);
+            case '<' -> addToken(match('=') ? LESS_EQUAL : LESS, c);
+            case '>' -> addToken(match('=') ? GREATER_EQUAL : GREATER, c);
+            case '/' -> {
+                if (match('/')) {
+                    // A comment goes until the end of the line.
+                    while (peek() != '\n' && !isAtEnd()) {
+                        current++;
+                    }
+                    yield null;
+                } else {
+                    yield addToken(SLASH, c);
+                }
+            }
+
+            case ' ', '\r', '\n', '\t' -> {
+                // Ignore whitespace.
+                yield null;
+            }
+            case '"' -> string();
+
+            default -> {
+                if (isDigit(c)) {
+                    yield number();
+                } else if (isAlpha(c)) {
+                    yield identifier();
+                } else {
+                    skipCodePoint(c);
+                    errors.error(line, "Unexpected character.");
+                    yield null;
+                }
+            }
+        };
+    }
+
+    private Token identifier() {
+        while (isAlphaNumeric(peek())) {
+            current++;
+        }
+
+        String text = ascii();
+        TokenType type = Scanner.keywords.get(text);
+        if (type == null) {
+            type = IDENTIFIER;
+        }
+        return new Token(type, text, null, line);
+    }
+
+    private Token number() {
+        while (isDigit(peek())) {
+            current++;
+        }
+
+        // Look for a fractional part.
+        if (peek() == '.' && isDigit(peekNext())) {
+            // Consume the "."
+            current++;
+
+            while (isDigit(peek())) {
+                current++;
+            }
+        }
+
+        String text = ascii();
+        return new Token(NUMBER, text, Double.parseDouble(text), line);
+    }
+
+    private Token string() {
+        while (peek() != '"' && !isAtEnd()) {
+            advance();
+        }
+
+        if (isAtEnd()) {
+            errors.error(line, "Unterminated string.");
+            return null;
+        }
+
+        // The closing ".
+        current++;
+
+        // This is the only place the source needs decoding.
+        String text = utf8(start, current);
+        String value = text.substring(1, text.length() - 1);
+        return new Token(STRING, text, value, line);
+    }
+
+    // Skips the continuation bytes of a multi-byte character so that it
+    // is reported as one unexpected character, as the char-based scanner
+    // does.
+    private void skipCodePoint(char lead) {
+        if (lead < 0x80) {
+            return;
+        }
+        while (!isAtEnd() && (source.get(current) & 0xc0) == 0x80) {
+            current++;
+        }
+    }
+
+    private boolean match(char expected) {
+        if (isAtEnd()) {
+            return false;
+        }
+        if (source.get(current) != expected) {
+            return false;
+        }
+
+        current++;
+        return true;
+    }
+
+    private char peek() {
+        if (isAtEnd()) {
+            return '\0';
+        }
+        return (char) (source.get(current) & 0xff);
+    }
+
+    private char peekNext() {
+        if (current + 1 >= length) {
+            return '\0';
+        }
+        return (char) (source.get(current + 1) & 0xff);
+    }
+
+    private boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || c == '_';
+    }
+
+    private boolean isAlphaNumeric(char c) {
+        return isAlpha(c) || isDigit(c);
+    }
+
+    private boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private boolean isAtEnd() {
+        return current >= length;
+    }
+
+    private char advance() {
+        char c = (char) (source.get(current++) & 0xff);
+        if (c == '\n') {
+            line++;
+        }
+        return c;
+    }
+
+    private Token addToken(TokenType type, char c) {
+        String text = current - start == 1 ? characters[c] : ascii();
+        return new Token(type, text, c, line);
+    }
+
+    private String ascii() {
+        byte[] bytes = new byte[current - start];
+        source.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private String utf8(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/**
+ * The inline cache of an {@link Expr.Call}. It remembers up to
+ * {@link #MAX_TARGETS} declarations of functions and classes that have
+ * already passed the checks at this call site, so that calling one of them
+ * again skips the callable test and the arity check. The interpreter calls
+ * a function that hits through {@link LoxFunction}'s own arity-specific
+ * methods, without an interface dispatch.
+ *
+ * The cache holds declarations rather than runtime objects, since every
+ * closure and every bound method is a new {@link LoxFunction}, and since
+ * a tree outlives the interpreters it ran on in a {@link ScriptCache}. A
+ * class is only remembered when its declaration fixes its arity, which an
+ * inherited initializer doesn't. Natives aren't remembered at all: their
+ * checks cost no more than a lookup would. A site that sees more targets
+ * than that is megamorphic and always takes the generic path.
+ */
+final class CallSite {
+
+    private static final int MAX_TARGETS = 4;
+    private static final Object[] NONE = new Object[0];
+
+    // Replaced rather than updated in place, and volatile, so that the
+    // parallel natives' workers running the same tree only ever see
+    // complete arrays. Two workers remembering at once may lose one of
+    // the targets, or leave some behind once the site went megamorphic.
+    // Either is harmless, since every target in the array has passed the
+    // checks and a lost one is only checked again.
+    private volatile Object[] targets = NONE;
+    private volatile boolean megamorphic = false;
+
+    /** Whether a function or class with that declaration passed before. */
+    boolean hits(Object declaration) {
+        for (Object target : targets) {
+            if (target == declaration) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code callee} as a callable that takes
+     * {@code argumentCount} arguments, or throws if it isn't one.
+     */
+    LoxCallable check(Object callee, Token paren, int argumentCount) {
+        if (callee instanceof LoxClass klass && hits(klass.declaration)) {
+            return klass;
+        }
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected "
+                    + function.arity() + " arguments but got "
+                    + argumentCount + ".");
+        }
+
+        if (!megamorphic) {
+            if (function instanceof LoxFunction loxFunction) {
+                remember(loxFunction.declaration);
+            } else if (function instanceof LoxClass klass
+                    && hasFixedArity(klass.declaration)) {
+                remember(klass.declaration);
+            }
+        }
+        return function;
+    }
+
+    // Whether every class made from the declaration has the same arity:
+    // it declares its initializer, or has no superclass to inherit one.
+    private static boolean hasFixedArity(Stmt.Class declaration) {
+        if (declaration.superclass() == null) {
+            return true;
+        }
+        for (Stmt.Function method : declaration.methods()) {
+            if (method.name().lexeme().equals("init")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remember(Object declaration) {
+        Object[] seen = targets;
+        if (seen.length == MAX_TARGETS) {
+            megamorphic = true;
+            targets = NONE;
+            return;
+        }
+
+        Object[] grown = Arrays.copyOf(seen, seen.length + 1);
+        grown[seen.length] = declaration;
+        targets = grown;
+    }
+}
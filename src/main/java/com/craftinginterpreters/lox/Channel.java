@@ -0,0 +1,45 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded queue of values for tasks to pass each other, made by the
+ * native channel(capacity). Sending to a full channel waits until there
+ * is room, and receiving from an empty one until there is a value. Values
+ * come out in the order they were sent.
+ *
+ * The channel is guarded by its {@link Scheduler}'s lock, which every
+ * task holds while it runs Lox code, and waiting lets go of it.
+ */
+final class Channel {
+
+    // Stands for nil, which an ArrayDeque can't hold.
+    private static final Object NIL = new Object();
+
+    private final Scheduler scheduler;
+    private final int capacity;
+    private final ArrayDeque<Object> values = new ArrayDeque<>();
+
+    Channel(Scheduler scheduler, int capacity) {
+        this.scheduler = scheduler;
+        this.capacity = capacity;
+    }
+
+    void send(Object value) {
+        scheduler.await(() -> values.size() < capacity);
+        values.add(value == null ? NIL : value);
+        scheduler.signal();
+    }
+
+    Object receive() {
+        scheduler.await(() -> !values.isEmpty());
+        Object value = values.remove();
+        scheduler.signal();
+        return value == NIL ? null : value;
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * The result of compiling a script for an embedder: the script, or null
+ * and the compile errors that stopped it, formatted the way the command
+ * line prints them. The errors belong to the one call, so clients that
+ * compile at the same time never see each other's.
+ */
+public record Compilation(CompiledScript script, List<String> errors) {
+
+    public boolean succeeded() {
+        return script != null;
+    }
+}
@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The output of the front end: the parsed statements together with the
+ * variable slots the {@link Resolver} computed for them. Embedders get
+ * one from a {@link ScriptCache} and run it with {@link Interpreter#run}.
+ */
+public final class CompiledScript {
+
+    private final List<Stmt> statements;
+    private final Map<Expr, Environment.Slot> locals;
+    // The function bodies a lazy parse hasn't loaded yet, or null.
+    private final LazyBody.Pending lazyBodies;
+
+    CompiledScript(List<Stmt> statements, Map<Expr, Environment.Slot> locals) {
+        this(statements, locals, null);
+    }
+
+    CompiledScript(List<Stmt> statements, Map<Expr, Environment.Slot> locals,
+            LazyBody.Pending lazyBodies) {
+        this.statements = statements;
+        this.locals = locals;
+        this.lazyBodies = lazyBodies;
+    }
+
+    List<Stmt> statements() {
+        return statements;
+    }
+
+    Map<Expr, Environment.Slot> locals() {
+        return locals;
+    }
+
+    LazyBody.Pending lazyBodies() {
+        return lazyBodies;
+    }
+}
@@ -1,51 +1,56 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.Arrays;
+
+/**
+ * A local scope at run time. Its variables live in an array, in the order
+ * they were defined, which is also the order the {@link Resolver} declared
+ * them in, so each one is found by the slot the resolver gave it rather
+ * than by name. The global scope is a {@link Globals}.
+ */
 class Environment {
 
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    /**
+     * Where a resolved local variable lives: how many scopes out from the
+     * one it is used in, and at which slot.
+     */
+    record Slot(int depth, int index) {
 
-    Environment() {
-        enclosing = null;
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
-    }
+    private static final Object[] EMPTY = {};
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme())) {
-            return values.get(name.lexeme());
-        }
-
-        if (enclosing != null) {
-            return enclosing.get(name);
-        }
+    final Environment enclosing;
+    private Object[] values;
+    private int count;
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme() + "'.");
+    Environment() {
+        this(null);
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme())) {
-            values.put(name.lexeme(), value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+    Environment(Environment enclosing) {
+        this(enclosing, EMPTY);
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme() + "'.");
+    /**
+     * Creates a scope whose first slots are {@code values}, which it takes
+     * over rather than copies. This is how a call turns its arguments into
+     * the callee's parameters.
+     */
+    Environment(Environment enclosing, Object[] values) {
+        this.enclosing = enclosing;
+        this.values = values;
+        this.count = values.length;
     }
 
+    /**
+     * Defines the next slot. The name only matters to {@link Globals}.
+     */
     void define(String name, Object value) {
-        values.put(name, value);
+        if (count == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, count * 2));
+        }
+        values[count++] = value;
     }
 
     Environment ancestor(int distance) {
@@ -57,17 +62,21 @@ class Environment {
         return environment;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(Slot slot) {
+        return getAt(slot.depth(), slot.index());
+    }
+
+    Object getAt(int distance, int index) {
+        return ancestor(distance).values[index];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme(), value);
+    void assignAt(Slot slot, Object value) {
+        ancestor(slot.depth()).values[slot.index()] = value;
     }
 
     @Override
     public String toString() {
-        String result = values.toString();
+        String result = Arrays.toString(Arrays.copyOf(values, count));
         if (enclosing != null) {
             result += " -> " + enclosing.toString();
         }
@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects compile errors instead of printing them, so that several
+ * scripts can be compiled at once without their errors interleaving or
+ * going through the global {@link Lox#hadError}.
+ */
+class ErrorList implements ErrorReporter {
+
+    record Error(int line, String where, String message) {
+
+        @Override
+        public String toString() {
+            return "[line " + line + "] Error" + where + ": " + message;
+        }
+    }
+
+    private final List<Error> errors = new ArrayList<>();
+
+    @Override
+    public void report(int line, String where, String message) {
+        errors.add(new Error(line, where, message));
+    }
+
+    @Override
+    public boolean hadError() {
+        return !errors.isEmpty();
+    }
+
+    List<Error> errors() {
+        return errors;
+    }
+
+    void reportTo(ErrorReporter reporter) {
+        for (Error error : errors) {
+            reporter.report(error.line(), error.where(), error.message());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Receives the compile errors found by the scanner, parser and resolver.
+ */
+interface ErrorReporter {
+
+    void report(int line, String where, String message);
+
+    boolean hadError();
+
+    default void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    default void error(Token token, String message) {
+        if (token.type() == TokenType.EOF) {
+            report(token.line(), " at end", message);
+        } else {
+            report(token.line(), " at '" + token.lexeme() + "'", message);
+        }
+    }
+}
@@ -2,22 +2,34 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-public sealed interface Expr permits Expr.Assign, Expr.Binary, Expr.Call, Expr.Get, Expr.Grouping, Expr.Literal, Expr.Logical, Expr.Set, Expr.Super, Expr.This, Expr.Unary, Expr.Variable {
+public sealed interface Expr permits Expr.Assign, Expr.Binary, Expr.Call, Expr.Get, Expr.Grouping, Expr.Literal, Expr.Logical, Expr.Optimized, Expr.Set, Expr.Super, Expr.This, Expr.Unary, Expr.Variable {
 
-    public record Assign(Token name, Expr value) implements Expr {
+    public record Assign(Token name, Expr value, Globals.Site global) implements Expr {
 
+        public Assign(Token name, Expr value) {
+            this(name, value, new Globals.Site());
+        }
     }
 
-    public record Binary(Expr left, Token operator, Expr right) implements Expr {
+    public record Binary(Expr left, Token operator, Expr right, TypeProfile profile) implements Expr {
 
+        public Binary(Expr left, Token operator, Expr right) {
+            this(left, operator, right, new TypeProfile(2));
+        }
     }
 
-    public record Call(Expr callee, Token paren, List<Expr> arguments) implements Expr {
+    public record Call(Expr callee, Token paren, List<Expr> arguments, CallSite site, TypeProfile profile) implements Expr {
 
+        public Call(Expr callee, Token paren, List<Expr> arguments) {
+            this(callee, paren, arguments, new CallSite(), new TypeProfile(1));
+        }
     }
 
-    public record Get(Expr object, Token name) implements Expr {
+    public record Get(Expr object, Token name, TypeProfile profile) implements Expr {
 
+        public Get(Expr object, Token name) {
+            this(object, name, new TypeProfile(1));
+        }
     }
 
     public record Grouping(Expr expression) implements Expr {
@@ -32,6 +44,14 @@ public sealed interface Expr permits Expr.Assign, Expr.Binary, Expr.Call, Expr.G
 
     }
 
+    /**
+     * An optimized expression, which falls back to {@code original} when
+     * its code is no longer valid.
+     */
+    public record Optimized(Expr original, Optimization.ForExpr code) implements Expr {
+
+    }
+
     public record Set(Expr object, Token name, Expr value) implements Expr {
 
     }
@@ -44,12 +64,18 @@ public sealed interface Expr permits Expr.Assign, Expr.Binary, Expr.Call, Expr.G
 
     }
 
-    public record Unary(Token operator, Expr right) implements Expr {
+    public record Unary(Token operator, Expr right, TypeProfile profile) implements Expr {
 
+        public Unary(Token operator, Expr right) {
+            this(operator, right, new TypeProfile(1));
+        }
     }
 
-    public record Variable(Token name) implements Expr {
+    public record Variable(Token name, Globals.Site global) implements Expr {
 
+        public Variable(Token name) {
+            this(name, new Globals.Site());
+        }
     }
 
 }
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * The value of an expression that only reads constants, where some of
+ * them are global variables the resolver saw assigned once. A later
+ * script could still assign or redefine those, so the first time this runs
+ * against a set of globals it checks that each one holds the value the
+ * optimizer assumed, and from then on depends on it never changing.
+ *
+ * Reading a global also fails the way the baseline would if the global
+ * isn't defined yet. Once the check has passed it is never repeated.
+ */
+final class FoldedConstant extends Optimization.ForExpr
+        implements Fused.Operand {
+
+    /** A global variable that must hold {@code value}. */
+    record Guard(Expr.Variable variable, Object value) {
+
+    }
+
+    private final Object value;
+    private final List<Guard> guards;
+    private final Expr original;
+    // The id of the globals checked last; see Globals#id(). Volatile so
+    // that a parallel worker that sees it set also sees the dependencies
+    // registered before it. Workers checking at once only register the
+    // same ones twice.
+    private volatile long checked = 0;
+
+    FoldedConstant(Object value, List<Guard> guards, Expr original) {
+        this.value = value;
+        this.guards = guards;
+        this.original = original;
+    }
+
+    Object value() {
+        return value;
+    }
+
+    List<Guard> guards() {
+        return guards;
+    }
+
+    @Override
+    Object evaluate(Interpreter interpreter) {
+        if (checked != interpreter.globals.id()) {
+            check(interpreter);
+            if (!isValid()) {
+                return interpreter.evaluate(original);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Object read(Interpreter interpreter) {
+        return isValid()
+                ? evaluate(interpreter) : interpreter.evaluate(original);
+    }
+
+    private void check(Interpreter interpreter) {
+        for (Guard guard : guards) {
+            Expr.Variable variable = guard.variable();
+            dependOn(interpreter.globals.stable(variable.global(),
+                    variable.name()));
+            Object actual = interpreter.evaluate(variable);
+            if (!Interpreter.isEqual(actual, guard.value())) {
+                invalidate();
+            }
+        }
+        checked = interpreter.globals.id();
+    }
+}
@@ -0,0 +1,204 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * Superinstructions: optimized code for the handful of patterns that hot
+ * loops are made of, each doing in one step what the baseline does by
+ * walking several nodes. The {@link Optimizer} installs them.
+ *
+ * Variables are read straight from the slot the resolver gave them, and
+ * numbers are handled inline. Anything else deoptimizes or falls through
+ * to the interpreter's generic operations, with the same errors on the
+ * same lines as the baseline. Fused code doesn't update type profiles.
+ */
+final class Fused {
+
+    private Fused() {
+    }
+
+    /** A variable or constant that can be read without evaluating a node. */
+    interface Operand {
+
+        Object read(Interpreter interpreter);
+    }
+
+    /** A variable that can also be assigned. */
+    interface Target extends Operand {
+
+        void write(Interpreter interpreter, Object value);
+    }
+
+    record Local(Environment.Slot slot) implements Target {
+
+        @Override
+        public Object read(Interpreter interpreter) {
+            return interpreter.environment().getAt(slot);
+        }
+
+        @Override
+        public void write(Interpreter interpreter, Object value) {
+            interpreter.environment().assignAt(slot, value);
+        }
+    }
+
+    record Global(Globals.Site site, Token name) implements Target {
+
+        @Override
+        public Object read(Interpreter interpreter) {
+            return interpreter.globals.get(site, name);
+        }
+
+        @Override
+        public void write(Interpreter interpreter, Object value) {
+            interpreter.globals.assign(site, name, value);
+        }
+    }
+
+    record Constant(Object value) implements Operand {
+
+        @Override
+        public Object read(Interpreter interpreter) {
+            return value;
+        }
+    }
+
+    /**
+     * {@code x = x + k} or {@code x = x - k} for a number {@code k}. Speculates
+     * that {@code x} holds a number.
+     */
+    static final class Increment extends Optimization.ForExpr {
+
+        private final Target variable;
+        private final Token operator;
+        private final Double operand;
+        private final double delta;
+
+        Increment(Target variable, Token operator, Double operand) {
+            this.variable = variable;
+            this.operator = operator;
+            this.operand = operand;
+            this.delta = operator.type() == TokenType.MINUS
+                    ? -operand : operand;
+        }
+
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            Object value = variable.read(interpreter);
+            Object result;
+            if (value instanceof Double number) {
+                result = number + delta;
+            } else {
+                deoptimize();
+                result = Interpreter.binary(operator, value, operand);
+            }
+            variable.write(interpreter, result);
+            return result;
+        }
+    }
+
+    /**
+     * A comparison of two variables or constants, such as {@code i < n}.
+     * Speculates that both are numbers.
+     */
+    static final class Compare extends Optimization.ForExpr {
+
+        private final Token operator;
+        private final Operand left;
+        private final Operand right;
+
+        Compare(Token operator, Operand left, Operand right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            Object a = left.read(interpreter);
+            Object b = right.read(interpreter);
+            if (a instanceof Double x && b instanceof Double y) {
+                return switch (operator.type()) {
+                    case LESS -> x < y;
+                    case LESS_EQUAL -> x <= y;
+                    case GREATER -> x > y;
+                    default -> x >= y;
+                };
+            }
+
+            deoptimize();
+            return Interpreter.binary(operator, a, b);
+        }
+    }
+
+    /**
+     * {@code a.b = a.b + x}, or with another arithmetic operator, where
+     * {@code a} is a variable. Reads {@code a} once and looks the field up
+     * once.
+     */
+    static final class FieldUpdate extends Optimization.ForExpr {
+
+        private final Operand object;
+        private final Token get;
+        private final Token set;
+        private final Token operator;
+        private final Expr value;
+
+        FieldUpdate(Operand object, Token get, Token set, Token operator,
+                Expr value) {
+            this.object = object;
+            this.get = get;
+            this.set = set;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            if (!(object.read(interpreter) instanceof LoxInstance instance)) {
+                throw new RuntimeError(set, "Only instances have fields.");
+            }
+
+            Object left = instance.get(get);
+            Object right = interpreter.evaluate(value);
+            Object result;
+            if (operator.type() == TokenType.PLUS
+                    && left instanceof Double x && right instanceof Double y) {
+                result = x + y;
+            } else {
+                result = interpreter.charge(operator, left,
+                        Interpreter.binary(operator, left, right));
+            }
+            instance.set(set, result);
+            return result;
+        }
+    }
+
+    /**
+     * A while loop whose body is a block that declares nothing, which is
+     * what the parser turns a for loop into. Such a block's environment
+     * never holds anything, so one is made for the whole loop instead of
+     * one per iteration.
+     */
+    static final class Loop extends Optimization.ForStmt {
+
+        private final Token keyword;
+        private final Expr condition;
+        private final List<Stmt> body;
+
+        Loop(Token keyword, Expr condition, List<Stmt> body) {
+            this.keyword = keyword;
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        void execute(Interpreter interpreter) {
+            Environment scope = new Environment(interpreter.environment());
+            while (Interpreter.isTruthy(interpreter.evaluate(condition))) {
+                interpreter.executeBlock(body, scope);
+                interpreter.poll(keyword);
+            }
+        }
+    }
+}
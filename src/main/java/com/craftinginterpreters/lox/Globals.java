@@ -0,0 +1,192 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The global environment. Each global variable lives in its own slot, a
+ * {@link Cell}, which is created the first time the name is defined or
+ * referenced and never moves afterwards. A variable expression caches the
+ * index of the cell it found in its {@link Site}, so after the first access
+ * reading a global is an array load rather than a hash lookup.
+ *
+ * A cell created by a reference stays undefined until a definition fills
+ * it, which is how a function can refer to a global declared after it.
+ *
+ * While the globals are frozen, for the data-parallel natives, they are
+ * read-only, and assigning to one is a runtime error.
+ */
+class Globals extends Environment {
+
+    private static final Object UNDEFINED = new Object();
+
+    // A site packs the id of the globals into the bits above the index.
+    private static final int INDEX_BITS = 24;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    private static final AtomicLong ids = new AtomicLong();
+
+    static final class Cell {
+
+        private final String name;
+        private final int index;
+        private Object value = UNDEFINED;
+        private Assumption stable = null;
+
+        private Cell(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The cell a variable expression last resolved to. A syntax tree can
+     * run on more than one interpreter, and outlive them in a
+     * {@link ScriptCache}, so it only records which globals the cell
+     * belongs to and where, not the cell itself, whose value would keep
+     * that interpreter's state reachable.
+     */
+    static final class Site {
+
+        // The id of the globals and the cell's index in them, or 0. One
+        // volatile long, so that a worker sees both or neither, and sees
+        // the cell stored before it.
+        private volatile long key = 0;
+    }
+
+    private final long id = ids.incrementAndGet();
+    // Concurrent, since even reading a global may add a cell.
+    private final Map<String, Cell> cells = new ConcurrentHashMap<>();
+    // The cells by index, grown while holding the lock.
+    private volatile Cell[] indexed = new Cell[64];
+    private int count = 0;
+    private volatile int frozen = 0;
+
+    Object get(Site site, Token name) {
+        Object value = cell(site, name).value;
+        if (value == UNDEFINED) {
+            throw undefined(name);
+        }
+        return value;
+    }
+
+    void assign(Site site, Token name, Object value) {
+        Cell cell = cell(site, name);
+        if (cell.value == UNDEFINED) {
+            throw undefined(name);
+        }
+        if (frozen > 0) {
+            throw new RuntimeError(name,
+                    "Can't assign to a global variable in a parallel task.");
+        }
+        invalidate(cell);
+        cell.value = value;
+    }
+
+    Object get(Token name) {
+        Object value = cell(name.lexeme()).value;
+        if (value == UNDEFINED) {
+            throw undefined(name);
+        }
+        return value;
+    }
+
+    @Override
+    void define(String name, Object value) {
+        Cell cell = cell(name);
+        if (cell.value != UNDEFINED) {
+            invalidate(cell);
+        }
+        cell.value = value;
+    }
+
+    /** Makes the globals read-only until a matching {@link #thaw()}. */
+    synchronized void freeze() {
+        frozen++;
+    }
+
+    synchronized void thaw() {
+        frozen--;
+    }
+
+    boolean isFrozen() {
+        return frozen > 0;
+    }
+
+    /**
+     * Tells these globals apart from any other interpreter's, for caches
+     * in the syntax tree that must not keep them reachable.
+     */
+    long id() {
+        return id;
+    }
+
+    /**
+     * An assumption that the global keeps the value it has, or gets when
+     * it is first defined. Assigning or redefining it invalidates the
+     * assumption.
+     */
+    Assumption stable(Site site, Token name) {
+        Cell cell = cell(site, name);
+        if (cell.stable == null) {
+            cell.stable = new Assumption(
+                    "'" + name.lexeme() + "' is never reassigned");
+        }
+        return cell.stable;
+    }
+
+    private static void invalidate(Cell cell) {
+        if (cell.stable != null) {
+            cell.stable.invalidate();
+        }
+    }
+
+    private Cell cell(Site site, Token name) {
+        long key = site.key;
+        if (key >>> INDEX_BITS == id) {
+            return indexed[(int) (key & INDEX_MASK)];
+        }
+
+        Cell cell = cell(name.lexeme());
+        if (cell.index <= INDEX_MASK) {
+            site.key = id << INDEX_BITS | cell.index;
+        }
+        return cell;
+    }
+
+    private Cell cell(String name) {
+        return cells.computeIfAbsent(name, this::newCell);
+    }
+
+    private synchronized Cell newCell(String name) {
+        Cell cell = new Cell(name, count);
+        Cell[] cells = indexed;
+        if (count == cells.length) {
+            cells = Arrays.copyOf(cells, count * 2);
+        }
+        cells[count++] = cell;
+        indexed = cells;
+        return cell;
+    }
+
+    private RuntimeError undefined(Token name) {
+        return new RuntimeError(name,
+                "Undefined variable '" + name.lexeme() + "'.");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (Cell cell : cells.values()) {
+            if (cell.value == UNDEFINED) {
+                continue;
+            }
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(cell.name).append('=').append(cell.value);
+        }
+        return builder.append('}').toString();
+    }
+}
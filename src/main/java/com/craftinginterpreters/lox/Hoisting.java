@@ -0,0 +1,150 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * Loop-invariant code motion: a loop whose invariant expressions are each
+ * computed once per run of the loop rather than once per iteration. The
+ * {@link Optimizer} installs it with --optimize=2.
+ *
+ * An invariant is computed the first time it is reached, not before the
+ * loop starts, so a loop that runs zero times or never gets to it doesn't
+ * compute it, and any error it raises comes when and where the baseline
+ * would raise it. Its value is kept in a slot of the loop's scope, the one
+ * environment all iterations share, which makes it local to one run of the
+ * loop on one interpreter.
+ *
+ * Once another task may run, through a safepoint, it could change what the
+ * invariants read, so hoisting depends on the scheduler's assumption that
+ * there is only one. A loop that sees it invalidated carries on as the
+ * baseline loop.
+ */
+final class Hoisting {
+
+    // The value of an invariant that hasn't been computed yet.
+    private static final Object UNSET = new Object();
+
+    private Hoisting() {
+    }
+
+    /**
+     * A global function the loop calls on the assumption that it's the
+     * pure function the optimizer analyzed.
+     */
+    record Guard(Expr.Variable callee, Stmt.Function declaration) {
+
+    }
+
+    /**
+     * A while loop whose body is a block that declares nothing. The
+     * condition is evaluated in the loop's scope too, so that its
+     * invariants have somewhere to go; the optimizer has adjusted its
+     * variables' slots for that.
+     */
+    static final class Loop extends Optimization.ForStmt {
+
+        private final Stmt.While original;
+        private final Expr condition;
+        private final List<Stmt> body;
+        private final int invariants;
+        private final List<Guard> guards;
+        // The id of the scheduler the dependency is registered on, set
+        // once it is and volatile, as in InlinedCall.
+        private volatile long registered = 0;
+
+        Loop(Stmt.While original, Expr condition, List<Stmt> body,
+                int invariants, List<Guard> guards) {
+            this.original = original;
+            this.condition = condition;
+            this.body = body;
+            this.invariants = invariants;
+            this.guards = guards;
+        }
+
+        @Override
+        void execute(Interpreter interpreter) {
+            if (registered != interpreter.scheduler.id()) {
+                dependOn(interpreter.scheduler.alone());
+                registered = interpreter.scheduler.id();
+                if (!isValid()) {
+                    interpreter.execute(original);
+                    return;
+                }
+            }
+            if (!guardsHold(interpreter)) {
+                deoptimize();
+                interpreter.execute(original);
+                return;
+            }
+
+            Environment scope = new Environment(interpreter.environment());
+            for (int i = 0; i < invariants; i++) {
+                scope.define(null, UNSET);
+            }
+            while (Interpreter.isTruthy(
+                    interpreter.evaluate(condition, scope))) {
+                interpreter.executeBlock(body, scope);
+                interpreter.poll(original.keyword());
+                if (!isValid()) {
+                    // The rest of the loop is the baseline loop, which
+                    // starts by evaluating the condition too.
+                    interpreter.execute(original);
+                    return;
+                }
+            }
+        }
+
+        // Whether each callee is still the function it was when the loop
+        // was analyzed. Nothing in the loop can change that while it runs.
+        private boolean guardsHold(Interpreter interpreter) {
+            for (Guard guard : guards) {
+                Object callee;
+                try {
+                    callee = interpreter.evaluate(guard.callee());
+                }
+                catch (RuntimeError error) {
+                    return false; // Undefined, so the baseline should fail.
+                }
+                if (!(callee instanceof LoxFunction function)
+                        || function.declaration != guard.declaration()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * An invariant expression, and the slot of the loop's scope it is kept
+     * in, as seen from where it is used.
+     */
+    static final class Value extends Optimization.ForExpr {
+
+        private final Expr expression;
+        private final Environment.Slot slot;
+
+        Value(Expr expression, Environment.Slot slot) {
+            this.expression = expression;
+            this.slot = slot;
+        }
+
+        Expr expression() {
+            return expression;
+        }
+
+        Environment.Slot slot() {
+            return slot;
+        }
+
+        @Override
+        Object evaluate(Interpreter interpreter) {
+            Environment environment = interpreter.environment();
+            Object value = environment.getAt(slot);
+            if (value == UNSET) {
+                value = interpreter.evaluate(expression);
+                environment.assignAt(slot, value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A call to a small global function, {@code fun f(a, b) { return e; }},
+ * with the function's returned expression evaluated in place. There is no
+ * dispatch, no call-site check and no {@link Return} thrown; the arguments
+ * still become the slots of an environment, since that's where {@code e}
+ * reads its parameters from.
+ *
+ * Speculates that the global still holds the function the optimizer saw,
+ * not memoized, and depends on it never being reassigned. Errors in {@code e} are
+ * reported on its own lines, as they would be from a real call.
+ */
+final class InlinedCall extends Optimization.ForExpr {
+
+    private final Expr.Call call;
+    private final Expr.Variable callee;
+    private final Stmt.Function declaration;
+    private final Expr body;
+    // Set once the dependency is registered, and volatile, so that no
+    // parallel worker runs the inlined body before it is.
+    private volatile boolean registered = false;
+
+    InlinedCall(Expr.Call call, Expr.Variable callee,
+            Stmt.Function declaration, Expr body) {
+        this.call = call;
+        this.callee = callee;
+        this.declaration = declaration;
+        this.body = body;
+    }
+
+    @Override
+    Object evaluate(Interpreter interpreter) {
+        if (!registered) {
+            // The globals only exist once the script runs.
+            dependOn(interpreter.globals.stable(callee.global(),
+                    callee.name()));
+            registered = true;
+        }
+
+        Object target = interpreter.evaluate(callee);
+        Object[] arguments = new Object[call.arguments().size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = interpreter.evaluate(call.arguments().get(i));
+        }
+
+        if (target instanceof LoxFunction function
+                && function.declaration == declaration
+                && !function.isMemoized()) {
+            // Entering the function is a safepoint, inlined or not.
+            interpreter.poll(declaration.name());
+            long charged = interpreter.chargeCall(arguments.length);
+            try {
+                return interpreter.evaluate(body,
+                        new Environment(function.closure, arguments));
+            }
+            finally {
+                interpreter.refund(charged);
+            }
+        }
+
+        deoptimize();
+        return interpreter.call(call, target, arguments);
+    }
+}
@@ -1,49 +1,133 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class Interpreter {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            
-            @Override
-            public int arity() {
-                return 0;
+    final Globals globals;
+    final Scheduler scheduler;
+    private Environment environment;
+    private final Map<Expr, Environment.Slot> locals;
+    // The lazily parsed scripts run here, whose bodies resolve into locals.
+    private final Set<LazyBody.Pending> lazyBodies;
+    private Budget budget = Budget.UNLIMITED;
+    // Polls left until the next safepoint. Under a budget, this is also the
+    // fuel taken from it and not spent yet.
+    private int ticks = Scheduler.TICKS;
+    // Bytes of the environments of the calls running here, which
+    // safepoints check against the memory budget.
+    private long frames = 0;
+
+    public Interpreter() {
+        globals = new Globals();
+        scheduler = new Scheduler();
+        environment = globals;
+        locals = new IdentityHashMap<>();
+        lazyBodies = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+        Natives.define(globals);
+    }
+
+    private Interpreter(Interpreter parent) {
+        globals = parent.globals;
+        scheduler = parent.scheduler;
+        environment = globals;
+        locals = parent.locals;
+        lazyBodies = parent.lazyBodies;
+        budget = parent.budget;
+        ticks = budget.isLimited() ? 1 : Scheduler.TICKS;
+    }
+
+    /**
+     * Limits the fuel and memory that the scripts run from now on may use
+     * between them; see {@link Budget}.
+     */
+    void limit(long fuel, long memory) {
+        budget = new Budget(fuel, memory);
+        ticks = 1;
+    }
+
+    /**
+     * An interpreter for calling back into Lox on another thread. It
+     * shares this one's globals, resolution data and scheduler; see
+     * {@link Parallel} and {@link Scheduler} for how they are kept safe.
+     */
+    Interpreter fork() {
+        return new Interpreter(this);
+    }
+
+    void interpret(CompiledScript script) {
+        scheduler.enter();
+        try {
+            resolve(script.locals());
+            if (script.lazyBodies() != null) {
+                lazyBodies.add(script.lazyBodies());
             }
+            script.statements().forEach(this::execute);
+        }
+        catch (RuntimeError error) {
+            scheduler.report(error);
+        }
+        finally {
+            scheduler.exit();
+        }
+    }
 
-            
-            @Override
-            public Object call(Interpreter interpreter,
-                    List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+    /**
+     * Runs a compiled script, and then the tasks it spawns, to the end.
+     * Returns the runtime errors that stopped any of them, formatted the
+     * way the command line prints them, instead of printing them. Runs on
+     * one interpreter must not overlap; each sees the globals the ones
+     * before it defined.
+     */
+    public List<String> run(CompiledScript script) {
+        List<String> errors = new ArrayList<>();
+        Consumer<RuntimeError> previous = scheduler.reportTo(
+                error -> errors.add(error.describe()));
+        try {
+            interpret(script);
+            finish();
+        }
+        finally {
+            scheduler.reportTo(previous);
+        }
+        return errors;
+    }
 
-            
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    /** Waits for the tasks the scripts have spawned to end. */
+    void finish() {
+        scheduler.finish();
     }
 
-    void interpret(List<Stmt> statements) {
-        try {
-            statements.forEach(this::execute);
+    /** The lazily parsed scripts that have run here. */
+    List<LazyBody.Pending> lazyBodies() {
+        synchronized (lazyBodies) {
+            return List.copyOf(lazyBodies);
         }
-        catch (RuntimeError error) {
-            Lox.runtimeError(error);
+    }
+
+    void resolve(Map<Expr, Environment.Slot> locals) {
+        this.locals.putAll(locals);
+    }
+
+    /**
+     * Forgets the resolution data of a script whose code can never run
+     * again, i.e. one that didn't declare any function or class.
+     */
+    void release(CompiledScript script) {
+        for (Expr expr : script.locals().keySet()) {
+            locals.remove(expr);
         }
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return switch (expr) {
             case Expr.Assign e -> visitAssignExpr(e);
             case Expr.Binary e -> visitBinaryExpr(e);
@@ -52,6 +136,7 @@ public class Interpreter {
             case Expr.Grouping e -> visitGroupingExpr(e);
             case Expr.Literal e -> visitLiteralExpr(e);
             case Expr.Logical e -> visitLogicalExpr(e);
+            case Expr.Optimized e -> visitOptimizedExpr(e);
             case Expr.Set e -> visitSetExpr(e);
             case Expr.Super e -> visitSuperExpr(e);
             case Expr.This e -> visitThisExpr(e);
@@ -60,13 +145,14 @@ public class Interpreter {
         };
     }
 
-    private void execute(Stmt stmt) {
+    void execute(Stmt stmt) {
         switch (stmt) {
             case Stmt.Block s -> visitBlockStmt(s);
             case Stmt.Class s -> visitClassStmt(s);
             case Stmt.Expression s -> visitExpressionStmt(s);
             case Stmt.Function s -> visitFunctionStmt(s);
             case Stmt.If s -> visitIfStmt(s);
+            case Stmt.Optimized s -> visitOptimizedStmt(s);
             case Stmt.Print s -> visitPrintStmt(s);
             case Stmt.Return s -> visitReturnStmt(s);
             case Stmt.Var s -> visitVarStmt(s);
@@ -74,8 +160,114 @@ public class Interpreter {
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    Environment environment() {
+        return environment;
+    }
+
+    /**
+     * A safepoint poll, made on each iteration of a loop and on entry to
+     * each function, with the token to report running out of budget at.
+     * Every {@link Scheduler#TICKS} polls, or every {@link Budget#BATCH}
+     * under a limit on fuel, other tasks may get to run, unless a parallel
+     * operation has the globals frozen.
+     */
+    void poll(Token token) {
+        if (--ticks == 0) {
+            safepoint(token);
+        }
+    }
+
+    private void safepoint(Token token) {
+        if (budget.isLimited()) {
+            refuel(token);
+            if (budget.limitsMemory() && !budget.check(frames)) {
+                throw new RuntimeError(token, "Out of memory.");
+            }
+        } else {
+            ticks = Scheduler.TICKS;
+        }
+
+        if (!globals.isFrozen()) {
+            scheduler.safepoint();
+        }
+    }
+
+    // Takes another batch of fuel.
+    private void refuel(Token token) {
+        // Any later poll should fail the same way.
+        ticks = 1;
+        int fuel = budget.take();
+        if (fuel == 0) {
+            throw new RuntimeError(token, "Out of fuel.");
+        }
+        ticks = fuel;
+    }
+
+    /**
+     * Charges the memory budget, if there is one, {@code bytes} at once.
+     * Running out is a {@link NativeError}, for natives, which the call
+     * reports on its line.
+     */
+    void allocate(long bytes) {
+        if (budget.limitsMemory() && !budget.allocate(bytes, frames)) {
+            throw new NativeError("Out of memory.");
+        }
+    }
+
+    /** Like {@link #allocate(long)}, running out at {@code token}. */
+    void allocate(long bytes, Token token) {
+        if (budget.limitsMemory() && !budget.allocate(bytes, frames)) {
+            throw new RuntimeError(token, "Out of memory.");
+        }
+    }
+
+    /**
+     * Charges the memory budget for what {@code collection} grew by since
+     * its estimated size was {@code before}.
+     */
+    void grown(LoxCollection collection, long before) {
+        if (budget.limitsMemory()) {
+            long after = collection.estimatedSize();
+            if (after > before) {
+                allocate(after - before);
+            }
+        }
+    }
+
+    /**
+     * Counts the environment of a call with that many slots against the
+     * memory budget, until the call passes the result to {@link #refund}.
+     * Safepoints check it, and entering a call is one. The environment
+     * usually goes when the call returns; when a closure keeps it, the
+     * heap has it after the next collection.
+     */
+    long chargeCall(int slots) {
+        if (!budget.limitsMemory()) {
+            return 0;
+        }
+
+        long bytes = Budget.ENVIRONMENT_BYTES + slots * Budget.SLOT_BYTES;
+        frames += bytes;
+        return bytes;
+    }
+
+    void refund(long bytes) {
+        frames -= bytes;
+    }
+
+    /**
+     * Evaluates an expression in another environment, as a function body
+     * that has been inlined.
+     */
+    Object evaluate(Expr expr, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+            return evaluate(expr);
+        }
+        finally {
+            this.environment = previous;
+        }
     }
 
     void executeBlock(List<Stmt> statements,
@@ -108,8 +300,6 @@ public class Interpreter {
             }
         }
 
-        environment.define(stmt.name().lexeme(), null);
-
         if (stmt.superclass() != null) {
             environment = new Environment(environment);
             environment.define("super", superclass);
@@ -122,14 +312,15 @@ public class Interpreter {
             methods.put(method.name().lexeme(), function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name().lexeme(),
-                (LoxClass) superclass, methods);
+        LoxClass klass = new LoxClass(stmt, (LoxClass) superclass, methods);
 
         if (superclass != null) {
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name(), klass);
+        // Defined only now, but nothing else is defined in this scope in
+        // between, so the class still gets the slot it was resolved to.
+        environment.define(stmt.name().lexeme(), klass);
         return null;
     }
 
@@ -158,6 +349,17 @@ public class Interpreter {
     }
 
     
+    public Void visitOptimizedStmt(Stmt.Optimized stmt) {
+        Optimization.ForStmt code = stmt.code();
+        if (code.isValid()) {
+            code.execute(this);
+        } else {
+            execute(stmt.original());
+        }
+        return null;
+    }
+
+    
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression());
         System.out.println(stringify(value));
@@ -189,6 +391,7 @@ public class Interpreter {
     public Void visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition()))) {
             execute(stmt.body());
+            poll(stmt.keyword());
         }
         return null;
     }
@@ -197,11 +400,11 @@ public class Interpreter {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value());
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name(), value);
+        Environment.Slot slot = locals.get(expr);
+        if (slot != null) {
+            environment.assignAt(slot, value);
         } else {
-            globals.assign(expr.name(), value);
+            globals.assign(expr.global(), expr.name(), value);
         }
 
         return value;
@@ -211,30 +414,65 @@ public class Interpreter {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left());
         Object right = evaluate(expr.right());
+        expr.profile().record(left, right);
+        return charge(expr.operator(), left,
+                binary(expr.operator(), left, right));
+    }
+
+    /**
+     * Charges the memory budget for the result of a binary operator if it
+     * is a long string + made, and returns it. That is a new buffer in
+     * full, or just the characters appended to the left operand's buffer,
+     * if that is where they went. Short strings go as garbage, or are
+     * counted once a collection finds they're kept.
+     */
+    Object charge(Token operator, Object left, Object result) {
+        if (!(result instanceof LoxString string)
+                || !budget.limitsMemory()) {
+            return result;
+        }
 
-        return switch (expr.operator().type()) {
+        int length = string.length();
+        if (left instanceof LoxString prefix
+                && prefix.buffer() == string.buffer()) {
+            allocate((length - prefix.length()) * Budget.CHAR_BYTES,
+                    operator);
+        } else {
+            // A new buffer has room for as many characters again.
+            allocate(Budget.STRING_BYTES + 2 * length * Budget.CHAR_BYTES,
+                    operator);
+        }
+        return result;
+    }
+
+    /**
+     * Applies a binary operator to operands that have already been
+     * evaluated. This is where optimized code whose guard failed picks up.
+     */
+    static Object binary(Token operator, Object left, Object right) {
+        return switch (operator.type()) {
             case BANG_EQUAL -> !isEqual(left, right);
             
             case EQUAL_EQUAL -> isEqual(left, right);
             
             case GREATER -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left > (double) right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left >= (double) right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left < (double) right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left <= (double) right;
             }
             case MINUS -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left - (double) right;
             }
             case PLUS -> {
@@ -242,52 +480,98 @@ public class Interpreter {
                     yield (double) left + (double) right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    yield (String) left + (String) right;
+                if (isString(left) && isString(right)) {
+                    yield LoxString.concat((CharSequence) left,
+                            (CharSequence) right);
                 }
 
-                throw new RuntimeError(expr.operator(),
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings.");
             }
             case SLASH -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left / (double) right;
             }
             case STAR -> {
-                checkNumberOperands(expr.operator(), left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left * (double) right;
             }
-            default -> throw new RuntimeError(expr.operator(), "Unexpected operator"); // Unreachable.
+            default -> throw new RuntimeError(operator, "Unexpected operator"); // Unreachable.
         };
     }
 
     
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee());
-
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments()) {
-            arguments.add(evaluate(argument));
+        expr.profile().record(callee);
+
+        // Up to three arguments are passed without an array. They are all
+        // evaluated before the callee is checked.
+        List<Expr> arguments = expr.arguments();
+        CallSite site = expr.site();
+        Token paren = expr.paren();
+        // A function this site has called before is called directly.
+        LoxFunction function = callee instanceof LoxFunction f
+                && site.hits(f.declaration) ? f : null;
+        try {
+            switch (arguments.size()) {
+                case 0 -> {
+                    return function != null ? function.call0(this)
+                            : site.check(callee, paren, 0).call0(this);
+                }
+                case 1 -> {
+                    Object a = evaluate(arguments.get(0));
+                    return function != null ? function.call1(this, a)
+                            : site.check(callee, paren, 1).call1(this, a);
+                }
+                case 2 -> {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    return function != null ? function.call2(this, a, b)
+                            : site.check(callee, paren, 2).call2(this, a, b);
+                }
+                case 3 -> {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    Object c = evaluate(arguments.get(2));
+                    return function != null ? function.call3(this, a, b, c)
+                            : site.check(callee, paren, 3)
+                                    .call3(this, a, b, c);
+                }
+                default -> {
+                    Object[] values = new Object[arguments.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = evaluate(arguments.get(i));
+                    }
+                    return function != null ? function.call(this, values)
+                            : site.check(callee, paren, values.length)
+                                    .call(this, values);
+                }
+            }
         }
-
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren(),
-                    "Can only call functions and classes.");
+        catch (NativeError error) {
+            throw new RuntimeError(expr.paren(), error.getMessage());
         }
+    }
 
-        LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren(), "Expected "
-                    + function.arity() + " arguments but got "
-                    + arguments.size() + ".");
+    /**
+     * Calls a callee with arguments that have already been evaluated, as
+     * the call expression would.
+     */
+    Object call(Expr.Call expr, Object callee, Object[] arguments) {
+        try {
+            return expr.site().check(callee, expr.paren(), arguments.length)
+                    .call(this, arguments);
+        }
+        catch (NativeError error) {
+            throw new RuntimeError(expr.paren(), error.getMessage());
         }
-
-        return function.call(this, arguments);
     }
 
     
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object());
+        expr.profile().record(object);
         if (object instanceof LoxInstance) {
             return ((LoxInstance) object).get(expr.name());
         }
@@ -324,6 +608,15 @@ public class Interpreter {
     }
 
     
+    public Object visitOptimizedExpr(Expr.Optimized expr) {
+        Optimization.ForExpr code = expr.code();
+        if (code.isValid()) {
+            return code.evaluate(this);
+        }
+        return evaluate(expr.original());
+    }
+
+    
     public Object visitSetExpr(Expr.Set expr) {
         Object object = evaluate(expr.object());
 
@@ -339,12 +632,11 @@ public class Interpreter {
 
     
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(
-                distance, "super");
+        int distance = locals.get(expr).depth();
+        LoxClass superclass = (LoxClass) environment.getAt(distance, 0);
 
-        LoxInstance object = (LoxInstance) environment.getAt(
-                distance - 1, "this");
+        // "this" is the only variable in the scope inside "super"'s.
+        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, 0);
 
         LoxFunction method = superclass.findMethod(expr.method().lexeme());
 
@@ -364,41 +656,54 @@ public class Interpreter {
     
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right());
+        expr.profile().record(right);
+        return unary(expr.operator(), right);
+    }
 
-        return switch (expr.operator().type()) {
+    /**
+     * Applies a unary operator to an operand that has already been
+     * evaluated.
+     */
+    static Object unary(Token operator, Object right) {
+        return switch (operator.type()) {
             case BANG -> !isTruthy(right);
             
             case MINUS -> {
-                checkNumberOperand(expr.operator(), right);
+                checkNumberOperand(operator, right);
                 yield -(double) right;
             }
             
-            default -> throw new RuntimeError(expr.operator(), "Unexpected operator"); // Unreachable.
+            default -> throw new RuntimeError(operator, "Unexpected operator"); // Unreachable.
         };
     }
 
     
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name(), expr);
+        Environment.Slot slot = locals.get(expr);
+        if (slot != null) {
+            return environment.getAt(slot);
+        } else {
+            return globals.get(expr.global(), expr.name());
+        }
     }
 
     private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme());
+        Environment.Slot slot = locals.get(expr);
+        if (slot != null) {
+            return environment.getAt(slot);
         } else {
             return globals.get(name);
         }
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) {
             return;
         }
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator,
+    private static void checkNumberOperands(Token operator,
             Object left, Object right) {
         if (left instanceof Double && right instanceof Double) {
             return;
@@ -406,7 +711,7 @@ public class Interpreter {
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         }
@@ -416,7 +721,7 @@ public class Interpreter {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) {
             return true;
         }
@@ -424,10 +729,18 @@ public class Interpreter {
             return false;
         }
 
+        // A String doesn't know it can equal a LoxString.
+        if (b instanceof LoxString) {
+            return b.equals(a);
+        }
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static boolean isString(Object object) {
+        return object instanceof String || object instanceof LoxString;
+    }
+
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
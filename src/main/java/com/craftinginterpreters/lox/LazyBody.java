@@ -0,0 +1,186 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The body of a function whose parsing was put off until it is first
+ * called. Until then it only holds the body's tokens and the resolver's
+ * view of the surrounding scopes. Syntax and resolution errors in the body
+ * are reported when it is loaded.
+ *
+ * Loading resolves into the interpreter doing the call, so a lazily parsed
+ * script must only ever run on one interpreter.
+ */
+class LazyBody extends AbstractList<Stmt> {
+
+    /**
+     * The bodies in one lazily parsed script that haven't been loaded and
+     * haven't failed to, and the optimization level the script was
+     * compiled at. The script and the interpreter that runs it hold it, so
+     * bodies that are never called go away with them.
+     */
+    static final class Pending {
+
+        private final int optimize;
+        // A body is a list, so compare them by identity instead.
+        private final Set<LazyBody> bodies = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        Pending(int optimize) {
+            this.optimize = optimize;
+        }
+
+        private List<LazyBody> bodies() {
+            synchronized (bodies) {
+                return List.copyOf(bodies);
+            }
+        }
+    }
+
+    private final Pending pending;
+    private final Token name;
+    private final List<Token> params;
+    private List<Token> tokens;
+    private Resolver.Context context;
+    private volatile List<Stmt> statements = null;
+    // The errors in the body once it has failed to load, and whether they
+    // have been reported yet.
+    private ErrorList errors = null;
+    private boolean reported = false;
+
+    LazyBody(Pending pending, Token name, List<Token> params,
+            List<Token> tokens) {
+        this.pending = pending;
+        this.name = name;
+        this.params = params;
+        this.tokens = tokens;
+        pending.bodies.add(this);
+    }
+
+    /**
+     * Loads every body that can be in the scripts {@code interpreter} has
+     * run, so that nothing is left to load while its workers run in
+     * parallel. Loading a body makes the ones declared in it loadable, so
+     * this goes on until a pass loads nothing more. A body with errors is
+     * left to report them when it is called, as usual.
+     */
+    static void loadAll(Interpreter interpreter) {
+        for (Pending script : interpreter.lazyBodies()) {
+            boolean loaded;
+            do {
+                loaded = false;
+                for (LazyBody body : script.bodies()) {
+                    loaded |= body.tryLoad(interpreter);
+                }
+            } while (loaded);
+        }
+    }
+
+    void defer(Resolver.Context context) {
+        this.context = context;
+    }
+
+    /**
+     * The names the body might assign to, going by its tokens: every
+     * identifier followed by "=".
+     */
+    Set<String> assignedNames() {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i + 1 < tokens.size(); i++) {
+            if (tokens.get(i).type() == TokenType.IDENTIFIER
+                    && tokens.get(i + 1).type() == TokenType.EQUAL) {
+                names.add(tokens.get(i).lexeme());
+            }
+        }
+        return names;
+    }
+
+    void load(Interpreter interpreter) {
+        if (statements != null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (statements == null && errors == null) {
+                tryLoad(interpreter);
+            }
+            if (errors != null) {
+                if (!reported) {
+                    errors.reportTo(Lox.errors);
+                    reported = true;
+                }
+                throw new RuntimeError(name, "Function body has errors.");
+            }
+        }
+    }
+
+    // Parses and resolves the body if that hasn't been tried yet and the
+    // scopes around it are known, returning whether it loaded.
+    private synchronized boolean tryLoad(Interpreter interpreter) {
+        if (statements != null || errors != null || context == null) {
+            return false;
+        }
+
+        ErrorList errors = new ErrorList();
+        Iterator<Token> iterator = tokens.iterator();
+        List<Stmt> body;
+        try {
+            body = new Parser(iterator::next, pending, errors).parseBody();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e); // Tokens are already in memory.
+        }
+
+        Map<Expr, Environment.Slot> locals = new IdentityHashMap<>();
+        if (!errors.hadError()) {
+            new Resolver(locals, errors).resolveBody(context, params, body);
+        }
+
+        pending.bodies.remove(this);
+        if (errors.hadError()) {
+            this.errors = errors;
+            return false;
+        }
+
+        if (pending.optimize > 0) {
+            body = Optimizer.optimizeBody(body, params.size(), locals,
+                    pending.optimize);
+        }
+        interpreter.resolve(locals);
+        statements = body;
+        tokens = null;
+        context = null;
+        return true;
+    }
+
+    boolean isLoaded() {
+        return statements != null;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return loaded().get(index);
+    }
+
+    @Override
+    public int size() {
+        return loaded().size();
+    }
+
+    private List<Stmt> loaded() {
+        if (statements == null) {
+            throw new IllegalStateException(
+                    "Body of '" + name.lexeme() + "' has not been parsed yet.");
+        }
+        return statements;
+    }
+}
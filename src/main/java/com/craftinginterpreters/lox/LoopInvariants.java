@@ -0,0 +1,434 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the invariant expressions of a while loop and rewrites the loop to
+ * compute them once per run, as a {@link Hoisting.Loop}.
+ *
+ * An expression is invariant if nothing the loop does can change its
+ * value: it only reads variables declared outside the loop that the loop
+ * never assigns, fields it never sets, and calls {@link Purity pure}
+ * functions. A loop that calls anything else could change any variable or
+ * field, so then only locals that are never assigned after their
+ * initializer count as invariant.
+ */
+final class LoopInvariants {
+
+    /** What the optimizer knows about the locals around the loop. */
+    interface Bindings {
+
+        /**
+         * Whether the local in {@code slot}, as seen from the scope the loop
+         * is in, is never assigned after its initializer.
+         */
+        boolean isConstant(Environment.Slot slot);
+    }
+
+    /** The parts of the rewritten loop. */
+    record Result(Expr condition, List<Stmt> body, int invariants,
+            List<Hoisting.Guard> guards) {
+
+    }
+
+    private final Map<Expr, Environment.Slot> locals;
+    private final Map<String, Purity> purity;
+    private final Map<String, Stmt.Function> functions;
+    private final Bindings bindings;
+
+    // What the loop does, anywhere in it.
+    private final Set<String> assigned = new HashSet<>();
+    private final Set<String> fieldsSet = new HashSet<>();
+    private final Map<String, Hoisting.Guard> guards = new LinkedHashMap<>();
+    private boolean opaque = false;
+
+    private int invariants = 0;
+
+    private LoopInvariants(Map<Expr, Environment.Slot> locals,
+            Map<String, Purity> purity, Map<String, Stmt.Function> functions,
+            Bindings bindings) {
+        this.locals = locals;
+        this.purity = purity;
+        this.functions = functions;
+        this.bindings = bindings;
+    }
+
+    /**
+     * Rewrites {@code loop}, adding the slots of the nodes it rebuilds to
+     * {@code locals}. Returns null if the loop has nothing worth hoisting
+     * or a body the rewritten loop can't run.
+     */
+    static Result hoist(Stmt.While loop, Map<Expr, Environment.Slot> locals,
+            Map<String, Purity> purity, Map<String, Stmt.Function> functions,
+            Bindings bindings) {
+        if (!(loop.body() instanceof Stmt.Block block)
+                || block.statements().stream()
+                        .anyMatch(LoopInvariants::declares)) {
+            return null;
+        }
+
+        LoopInvariants hoisting = new LoopInvariants(locals, purity,
+                functions, bindings);
+        hoisting.scan(loop);
+        if (hoisting.guards.keySet().stream()
+                .anyMatch(hoisting.assigned::contains)) {
+            hoisting.opaque = true; // A callee could become anything.
+        }
+
+        // The condition moves into the loop's scope, one level in.
+        Expr condition = hoisting.shift(loop.condition());
+        if (condition == null) {
+            return null;
+        }
+        condition = hoisting.rewrite(condition, 0);
+        List<Stmt> body = new ArrayList<>();
+        for (Stmt stmt : block.statements()) {
+            body.add(hoisting.rewrite(stmt, 0));
+        }
+
+        if (hoisting.invariants == 0) {
+            return null;
+        }
+        return new Result(condition, body, hoisting.invariants,
+                hoisting.opaque ? List.of()
+                        : List.copyOf(hoisting.guards.values()));
+    }
+
+    private static boolean declares(Stmt stmt) {
+        return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function
+                || stmt instanceof Stmt.Class;
+    }
+
+    // Records what the loop assigns, sets and calls.
+    private void scan(Stmt stmt) {
+        if (stmt == null) {
+            return;
+        }
+
+        switch (stmt) {
+            case Stmt.Block s -> s.statements().forEach(this::scan);
+            case Stmt.Class s -> {
+                scan(s.superclass());
+                s.methods().forEach(this::scan);
+            }
+            case Stmt.Expression s -> scan(s.expression());
+            case Stmt.Function s -> {
+                if (s.body() instanceof LazyBody body && !body.isLoaded()) {
+                    assigned.addAll(body.assignedNames());
+                } else {
+                    s.body().forEach(this::scan);
+                }
+            }
+            case Stmt.If s -> {
+                scan(s.condition());
+                scan(s.thenBranch());
+                scan(s.elseBranch());
+            }
+            case Stmt.Optimized s -> scan(s.original());
+            case Stmt.Print s -> scan(s.expression());
+            case Stmt.Return s -> scan(s.value());
+            case Stmt.Var s -> scan(s.initializer());
+            case Stmt.While s -> {
+                scan(s.condition());
+                scan(s.body());
+            }
+        }
+    }
+
+    private void scan(Expr expr) {
+        if (expr == null) {
+            return;
+        }
+
+        switch (expr) {
+            case Expr.Assign e -> {
+                assigned.add(e.name().lexeme());
+                scan(e.value());
+            }
+            case Expr.Binary e -> {
+                scan(e.left());
+                scan(e.right());
+            }
+            case Expr.Call e -> {
+                Stmt.Function function = pureCallee(e.callee());
+                if (function == null) {
+                    opaque = true;
+                } else {
+                    Expr.Variable callee = (Expr.Variable) e.callee();
+                    guards.putIfAbsent(callee.name().lexeme(),
+                            new Hoisting.Guard(callee, function));
+                }
+                scan(e.callee());
+                e.arguments().forEach(this::scan);
+            }
+            case Expr.Get e -> scan(e.object());
+            case Expr.Grouping e -> scan(e.expression());
+            case Expr.Literal e -> {
+            }
+            case Expr.Logical e -> {
+                scan(e.left());
+                scan(e.right());
+            }
+            case Expr.Optimized e -> scan(e.original());
+            case Expr.Set e -> {
+                fieldsSet.add(e.name().lexeme());
+                scan(e.object());
+                scan(e.value());
+            }
+            case Expr.Super e -> {
+            }
+            case Expr.This e -> {
+            }
+            case Expr.Unary e -> scan(e.right());
+            case Expr.Variable e -> {
+            }
+        }
+    }
+
+    // The declaration of a global function that is pure or only reads
+    // fields, if that's what callee names.
+    private Stmt.Function pureCallee(Expr callee) {
+        if (callee instanceof Expr.Variable variable
+                && !locals.containsKey(variable)
+                && purity.containsKey(variable.name().lexeme())) {
+            return functions.get(variable.name().lexeme());
+        }
+        return null;
+    }
+
+    /**
+     * Whether an expression used {@code level} scopes inside the loop's
+     * scope always has the same value while the loop runs.
+     */
+    private boolean isInvariant(Expr expr, int level) {
+        return switch (expr) {
+            case Expr.Binary e -> isInvariant(e.left(), level)
+                    && isInvariant(e.right(), level);
+            case Expr.Call e -> !opaque
+                    && pureCallee(e.callee()) != null
+                    && (fieldsSet.isEmpty() || purity.get(((Expr.Variable)
+                            e.callee()).name().lexeme()) == Purity.PURE)
+                    && isInvariant(e.callee(), level)
+                    && e.arguments().stream()
+                            .allMatch(argument -> isInvariant(argument, level));
+            case Expr.Get e -> !opaque
+                    && !fieldsSet.contains(e.name().lexeme())
+                    && isInvariant(e.object(), level);
+            case Expr.Grouping e -> isInvariant(e.expression(), level);
+            case Expr.Literal e -> true;
+            case Expr.Logical e -> isInvariant(e.left(), level)
+                    && isInvariant(e.right(), level);
+            // Invariants of an enclosing loop are invariants of this one.
+            case Expr.Optimized e -> e.code() instanceof Hoisting.Value;
+            case Expr.This e -> true;
+            case Expr.Unary e -> isInvariant(e.right(), level);
+            case Expr.Variable e -> isInvariant(e, level);
+            case Expr.Assign e -> false;
+            case Expr.Set e -> false;
+            case Expr.Super e -> false;
+        };
+    }
+
+    private boolean isInvariant(Expr.Variable variable, int level) {
+        if (assigned.contains(variable.name().lexeme())) {
+            return false;
+        }
+
+        Environment.Slot slot = locals.get(variable);
+        if (slot == null) {
+            // Only code from this script is known not to assign it.
+            return !opaque;
+        }
+        if (slot.depth() <= level) {
+            return false; // Declared inside the loop.
+        }
+        return !opaque || bindings.isConstant(new Environment.Slot(
+                slot.depth() - level - 1, slot.index()));
+    }
+
+    // Whether computing an expression costs more than reading a slot.
+    private static boolean isWorthHoisting(Expr expr) {
+        return switch (expr) {
+            case Expr.Binary e -> true;
+            case Expr.Call e -> true;
+            case Expr.Get e -> true;
+            case Expr.Grouping e -> isWorthHoisting(e.expression());
+            case Expr.Logical e -> isWorthHoisting(e.left())
+                    || isWorthHoisting(e.right());
+            case Expr.Unary e -> isWorthHoisting(e.right());
+            default -> false;
+        };
+    }
+
+    private Stmt rewrite(Stmt stmt, int level) {
+        if (stmt == null) {
+            return null;
+        }
+
+        return switch (stmt) {
+            case Stmt.Block s -> {
+                List<Stmt> statements = new ArrayList<>();
+                for (Stmt statement : s.statements()) {
+                    statements.add(rewrite(statement, level + 1));
+                }
+                yield new Stmt.Block(statements);
+            }
+            case Stmt.Expression s ->
+                new Stmt.Expression(rewrite(s.expression(), level));
+            case Stmt.If s -> new Stmt.If(rewrite(s.condition(), level),
+                    rewrite(s.thenBranch(), level),
+                    rewrite(s.elseBranch(), level));
+            case Stmt.Print s -> new Stmt.Print(rewrite(s.expression(), level));
+            case Stmt.Return s ->
+                new Stmt.Return(s.keyword(), rewrite(s.value(), level));
+            case Stmt.Var s -> new Stmt.Var(s.name(),
+                    rewrite(s.initializer(), level), s.binding());
+            case Stmt.While s -> new Stmt.While(s.keyword(),
+                    rewrite(s.condition(), level),
+                    rewrite(s.body(), level));
+            // Code in a function runs in a scope of its own.
+            case Stmt.Class s -> s;
+            case Stmt.Function s -> s;
+            case Stmt.Optimized s -> s;
+        };
+    }
+
+    private Expr rewrite(Expr expr, int level) {
+        if (expr == null) {
+            return null;
+        }
+        if (isWorthHoisting(expr) && isInvariant(expr, level)) {
+            return new Expr.Optimized(expr, new Hoisting.Value(expr,
+                    new Environment.Slot(level, invariants++)));
+        }
+
+        return switch (expr) {
+            case Expr.Assign e -> copySlot(e, new Expr.Assign(e.name(),
+                    rewrite(e.value(), level), e.global()));
+            case Expr.Binary e -> new Expr.Binary(rewrite(e.left(), level),
+                    e.operator(), rewrite(e.right(), level), e.profile());
+            case Expr.Call e -> {
+                List<Expr> arguments = new ArrayList<>();
+                for (Expr argument : e.arguments()) {
+                    arguments.add(rewrite(argument, level));
+                }
+                yield new Expr.Call(rewrite(e.callee(), level), e.paren(),
+                        arguments, e.site(), e.profile());
+            }
+            case Expr.Get e -> new Expr.Get(rewrite(e.object(), level),
+                    e.name(), e.profile());
+            case Expr.Grouping e -> new Expr.Grouping(
+                    rewrite(e.expression(), level));
+            case Expr.Logical e -> new Expr.Logical(rewrite(e.left(), level),
+                    e.operator(), rewrite(e.right(), level));
+            case Expr.Set e -> new Expr.Set(rewrite(e.object(), level),
+                    e.name(), rewrite(e.value(), level));
+            case Expr.Unary e -> new Expr.Unary(e.operator(),
+                    rewrite(e.right(), level), e.profile());
+            case Expr.Literal e -> e;
+            case Expr.Optimized e -> e;
+            case Expr.Super e -> e;
+            case Expr.This e -> e;
+            case Expr.Variable e -> e;
+        };
+    }
+
+    // An expression with every local it refers to one more scope out, or
+    // null if it has optimized code that can't be moved.
+    private Expr shift(Expr expr) {
+        if (expr == null) {
+            return null;
+        }
+
+        return switch (expr) {
+            case Expr.Assign e -> {
+                Expr value = shift(e.value());
+                yield value == null ? null : shiftSlot(e,
+                        new Expr.Assign(e.name(), value, e.global()));
+            }
+            case Expr.Binary e -> {
+                Expr left = shift(e.left());
+                Expr right = shift(e.right());
+                yield left == null || right == null ? null
+                        : new Expr.Binary(left, e.operator(), right,
+                                e.profile());
+            }
+            case Expr.Call e -> {
+                Expr callee = shift(e.callee());
+                List<Expr> arguments = new ArrayList<>();
+                for (Expr argument : e.arguments()) {
+                    arguments.add(shift(argument));
+                }
+                yield callee == null || arguments.contains(null) ? null
+                        : new Expr.Call(callee, e.paren(), arguments,
+                                e.site(), e.profile());
+            }
+            case Expr.Get e -> {
+                Expr object = shift(e.object());
+                yield object == null ? null
+                        : new Expr.Get(object, e.name(), e.profile());
+            }
+            case Expr.Grouping e -> {
+                Expr expression = shift(e.expression());
+                yield expression == null ? null
+                        : new Expr.Grouping(expression);
+            }
+            case Expr.Literal e -> e;
+            case Expr.Logical e -> {
+                Expr left = shift(e.left());
+                Expr right = shift(e.right());
+                yield left == null || right == null ? null
+                        : new Expr.Logical(left, e.operator(), right);
+            }
+            case Expr.Optimized e -> {
+                if (!(e.code() instanceof Hoisting.Value value)) {
+                    yield null;
+                }
+                Expr expression = shift(value.expression());
+                Environment.Slot slot = value.slot();
+                yield expression == null ? null
+                        : new Expr.Optimized(expression, new Hoisting.Value(
+                                expression, new Environment.Slot(
+                                        slot.depth() + 1, slot.index())));
+            }
+            case Expr.Set e -> {
+                Expr object = shift(e.object());
+                Expr value = shift(e.value());
+                yield object == null || value == null ? null
+                        : new Expr.Set(object, e.name(), value);
+            }
+            case Expr.Super e -> shiftSlot(e,
+                    new Expr.Super(e.keyword(), e.method()));
+            case Expr.This e -> shiftSlot(e, new Expr.This(e.keyword()));
+            case Expr.Unary e -> {
+                Expr right = shift(e.right());
+                yield right == null ? null
+                        : new Expr.Unary(e.operator(), right, e.profile());
+            }
+            case Expr.Variable e -> shiftSlot(e,
+                    new Expr.Variable(e.name(), e.global()));
+        };
+    }
+
+    private Expr shiftSlot(Expr expr, Expr shifted) {
+        Environment.Slot slot = locals.get(expr);
+        if (slot != null) {
+            locals.put(shifted,
+                    new Environment.Slot(slot.depth() + 1, slot.index()));
+        }
+        return shifted;
+    }
+
+    private Expr copySlot(Expr expr, Expr copy) {
+        Environment.Slot slot = locals.get(expr);
+        if (slot != null) {
+            locals.put(copy, slot);
+        }
+        return copy;
+    }
+}
@@ -2,40 +2,373 @@ package com.craftinginterpreters.lox;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Lox {
 
     private static final Interpreter interpreter = new Interpreter();
+    private static boolean lazy = false;
+    static boolean pipeline = false;
+    static boolean profile = false;
+    static int optimize = 0;
+    private static boolean differential = false;
+    private static long fuel = Long.MAX_VALUE;
+    private static long memory = Long.MAX_VALUE;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    static final ErrorReporter errors = new ErrorReporter() {
+
+        @Override
+        public void report(int line, String where, String message) {
+            Lox.report("[line " + line + "] Error" + where + ": " + message);
+        }
+
+        @Override
+        public boolean hadError() {
+            return hadError;
+        }
+    };
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
+        boolean stream = false;
+        int arg = 0;
+        while (arg < args.length && args[arg].startsWith("--")) {
+            String option = args[arg++];
+            switch (option) {
+                case "--stream" -> stream = true;
+                case "--lazy" -> lazy = true;
+                case "--pipeline" -> pipeline = true;
+                case "--profile" -> profile = true;
+                case "--optimize" -> optimize = Optimizer.BASIC;
+                case "--differential" -> differential = true;
+                default -> {
+                    if (option.startsWith("--fuel=")) {
+                        fuel = limit(option);
+                    } else if (option.startsWith("--memory=")) {
+                        memory = limit(option);
+                    } else {
+                        optimize = optimizationLevel(option);
+                    }
+                }
+            }
+        }
+        limit(interpreter);
+
+        List<String> paths = Arrays.asList(args).subList(arg, args.length);
+        if (paths.isEmpty()) {
             runPrompt();
+        } else if (differential) {
+            for (String path : paths) {
+                runDifferential(path);
+            }
+        } else if (stream) {
+            for (String path : paths) {
+                runStreaming(path);
+            }
+        } else if (paths.size() == 1) {
+            runFile(paths.get(0));
+        } else {
+            runFiles(paths);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--stream] [--lazy] [--pipeline] [--profile] [--optimize[=level]] [--differential] [--fuel=n] [--memory=bytes[k|m|g]] [script...]");
+        System.exit(64);
+    }
+
+    // The level of --optimize=level.
+    private static int optimizationLevel(String option) {
+        String prefix = "--optimize=";
+        if (option.startsWith(prefix)) {
+            try {
+                int level = Integer.parseInt(option.substring(prefix.length()));
+                if (level >= 0 && level <= Optimizer.MAX_LEVEL) {
+                    return level;
+                }
+            }
+            catch (NumberFormatException e) {
+                // Reported below.
+            }
+        }
+
+        usage();
+        return 0;
+    }
+
+    // The value of --fuel=n or --memory=bytes, which may end in k, m or g.
+    private static long limit(String option) {
+        String value = option.substring(option.indexOf('=') + 1)
+                .toLowerCase();
+        int shift = switch (value.isEmpty() ? ' '
+                : value.charAt(value.length() - 1)) {
+            case 'k' -> 10;
+            case 'm' -> 20;
+            case 'g' -> 30;
+            default -> 0;
+        };
+        if (shift > 0) {
+            value = value.substring(0, value.length() - 1);
+        }
+
+        try {
+            long limit = Long.parseLong(value);
+            if (limit > 0 && limit <= Long.MAX_VALUE >> shift) {
+                return limit << shift;
+            }
+        }
+        catch (NumberFormatException e) {
+            // Reported below.
+        }
+
+        usage();
+        return 0;
+    }
+
+    private static void limit(Interpreter interpreter) {
+        if (fuel != Long.MAX_VALUE || memory != Long.MAX_VALUE) {
+            interpreter.limit(fuel, memory);
         }
     }
 
     private static void runFile(String path) throws IOException {
-        try ( InputStream is = Files.newInputStream(Paths.get(path))) {
-            run(is);
+        CompiledScript script = compileFile(Paths.get(path), errors);
+        if (script != null) {
+            script = optimize(script);
+            interpreter.interpret(script);
+            interpreter.finish();
+            dumpProfile(script.statements());
+        }
+
+        exitOnError();
+    }
+
+    /**
+     * Compiles all of the scripts in parallel and then, if none of them
+     * had an error, runs them one after the other on the same interpreter,
+     * where each sees the globals defined by the ones before it.
+     */
+    private static void runFiles(List<String> paths) throws IOException {
+        List<ParallelCompiler.Result> results = new ParallelCompiler()
+                .compile(paths.stream().map(Paths::get).toList());
+
+        for (ParallelCompiler.Result result : results) {
+            for (ErrorList.Error error : result.errors()) {
+                report(result.path() + ": " + error);
+            }
+        }
+
+        for (ParallelCompiler.Result result : results) {
+            if (hadError || hadRuntimeError) {
+                break;
+            }
+            CompiledScript script = optimize(result.script());
+            interpreter.interpret(script);
+            dumpProfile(script.statements());
         }
 
+        interpreter.finish();
+        exitOnError();
+    }
+
+    /** What a script printed, and whether it failed. */
+    private record Run(String output, String errors, boolean hadError,
+            boolean hadRuntimeError) {
+
+    }
+
+    /**
+     * Runs a script twice, each time on a new interpreter: unoptimized, and
+     * then at the --optimize level given, or the highest one. Passes on
+     * what the unoptimized run printed, and fails like an internal error
+     * if the optimized run printed anything else or failed differently.
+     */
+    private static void runDifferential(String path) throws IOException {
+        int level = optimize == 0 ? Optimizer.MAX_LEVEL : optimize;
+        Run baseline = runCaptured(Paths.get(path), 0);
+        Run optimized = runCaptured(Paths.get(path), level);
+        optimize = level;
+
+        System.out.print(baseline.output());
+        System.err.print(baseline.errors());
+        hadError = baseline.hadError();
+        hadRuntimeError = baseline.hadRuntimeError();
+        if (!optimized.equals(baseline)) {
+            System.err.println(path + ": the run at optimization level "
+                    + level + " differs from the unoptimized one:");
+            System.err.print(optimized.output());
+            System.err.print(optimized.errors());
+            hadRuntimeError = true;
+        }
+
+        exitOnError();
+    }
+
+    private static Run runCaptured(Path source, int level) throws IOException {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        optimize = level;
+        hadError = false;
+        hadRuntimeError = false;
+        try {
+            System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(errors, true, StandardCharsets.UTF_8));
+            CompiledScript script = compileFile(source, Lox.errors);
+            if (script != null) {
+                Interpreter interpreter = new Interpreter();
+                limit(interpreter);
+                interpreter.interpret(optimize(script));
+                interpreter.finish();
+            }
+        }
+        finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        return new Run(output.toString(StandardCharsets.UTF_8),
+                errors.toString(StandardCharsets.UTF_8), hadError,
+                hadRuntimeError);
+    }
+
+    /**
+     * Compiles a script file, going through its .loxc cache. Returns null
+     * if there was an error, which has been reported to {@code errors}.
+     */
+    static CompiledScript compileFile(Path source, ErrorReporter errors)
+            throws IOException {
+        ByteBuffer bytes = ByteScanner.map(source);
+        Path cache = AstSerializer.cachePath(source);
+        byte[] hash = AstSerializer.hash(bytes);
+
+        CompiledScript script = null;
+        try {
+            script = AstSerializer.load(cache, hash);
+        }
+        catch (IOException e) {
+            // Treat a corrupt cache as stale; it's rewritten below.
+        }
+
+        if (script == null) {
+            script = compile(
+                    reporter -> new ByteScanner(bytes, reporter), lazy, errors);
+
+            // Function bodies that haven't been parsed can't be written.
+            if (script != null && !lazy) {
+                try {
+                    AstSerializer.store(cache, hash, script);
+                }
+                catch (IOException e) {
+                    // The cache is only an optimization; run without it.
+                }
+            }
+        }
+
+        return script;
+    }
+
+    /**
+     * Runs each top-level declaration as soon as it has been parsed and
+     * resolved, instead of reading the whole script first. Output starts
+     * right away and, apart from functions and classes, nothing that has
+     * finished running is kept in memory. Unlike runFile(), statements
+     * before a syntax error have already run when it is reported.
+     */
+    private static void runStreaming(String path) throws IOException {
+        ByteBuffer bytes = ByteScanner.map(Paths.get(path));
+        LazyBody.Pending lazyBodies
+                = lazy ? new LazyBody.Pending(optimize) : null;
+        Parser parser = new Parser(new ByteScanner(bytes, errors), lazyBodies,
+                errors);
+        List<Stmt> profiled = new ArrayList<>();
+        while (parser.hasNext()) {
+            Stmt statement = parser.next();
+
+            // Keep going after an error to report the rest of them,
+            // but don't run anything else.
+            if (hadError || hadRuntimeError) {
+                continue;
+            }
+
+            Map<Expr, Environment.Slot> locals = new IdentityHashMap<>();
+            new Resolver(locals).resolve(List.of(statement));
+            if (hadError) {
+                continue;
+            }
+
+            CompiledScript script = optimize(new CompiledScript(
+                    List.of(statement), locals, lazyBodies));
+            interpreter.interpret(script);
+            if (!declaresCode(statement)) {
+                interpreter.release(script);
+            }
+            if (profile) {
+                profiled.add(statement);
+            }
+        }
+
+        interpreter.finish();
+        dumpProfile(profiled);
+        exitOnError();
+    }
+
+    // Whether a statement declares a function or class that could outlive
+    // it and run again later.
+    private static boolean declaresCode(Stmt stmt) {
+        return switch (stmt) {
+            case Stmt.Block s -> s.statements().stream()
+                    .anyMatch(Lox::declaresCode);
+            case Stmt.Class s -> true;
+            case Stmt.Function s -> true;
+            case Stmt.If s -> declaresCode(s.thenBranch())
+                    || (s.elseBranch() != null && declaresCode(s.elseBranch()));
+            case Stmt.While s -> declaresCode(s.body());
+            case Stmt.Optimized s -> declaresCode(s.original());
+            case Stmt.Expression s -> false;
+            case Stmt.Print s -> false;
+            case Stmt.Return s -> false;
+            case Stmt.Var s -> false;
+        };
+    }
+
+    private static CompiledScript optimize(CompiledScript script) {
+        return optimize > 0 ? Optimizer.optimize(script, optimize) : script;
+    }
+
+    /**
+     * With --profile, prints the type feedback gathered while running, and
+     * how well memoized functions did, to stderr.
+     */
+    private static void dumpProfile(List<Stmt> statements) {
+        if (profile) {
+            Profiles.dump(statements, System.err);
+            Memo.dump(System.err);
+        }
+    }
+
+    private static void exitOnError() {
         // Indicate an error in the exit code.
         if (hadError) {
             System.exit(65);
@@ -58,51 +391,70 @@ public class Lox {
             run(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)));
             hadError = false;
         }
+
+        interpreter.finish();
     }
 
     private static void run(InputStream source) throws IOException {
-        Scanner scanner = new Scanner(source);
-        Parser parser = new Parser(scanner);
+        CompiledScript script = compile(source, errors);
+        if (script != null) {
+            interpreter.interpret(optimize(script));
+        }
+    }
+
+    /**
+     * Scans, parses and resolves a script. Returns null if there was an
+     * error, which has been reported to {@code errors}.
+     */
+    static CompiledScript compile(InputStream source, ErrorReporter errors)
+            throws IOException {
+        return compile(reporter -> new Scanner(source, reporter), false,
+                errors);
+    }
+
+    private static CompiledScript compile(
+            Function<ErrorReporter, TokenSource> scanner, boolean lazy,
+            ErrorReporter errors) throws IOException {
+        if (pipeline) {
+            try ( PipelinedTokenSource tokens
+                    = new PipelinedTokenSource(scanner, errors)) {
+                return compile(tokens, lazy, errors);
+            }
+        }
+        return compile(scanner.apply(errors), lazy, errors);
+    }
+
+    private static CompiledScript compile(TokenSource tokens, boolean lazy,
+            ErrorReporter errors) throws IOException {
+        LazyBody.Pending lazyBodies
+                = lazy ? new LazyBody.Pending(optimize) : null;
+        Parser parser = new Parser(tokens, lazyBodies, errors);
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) {
-            return;
+        if (errors.hadError()) {
+            return null;
         }
 
-        Resolver resolver = new Resolver(interpreter);
+        Map<Expr, Environment.Slot> locals = new IdentityHashMap<>();
+        Resolver resolver = new Resolver(locals, errors);
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
-        if (hadError) {
-            return;
+        if (errors.hadError()) {
+            return null;
         }
 
-        interpreter.interpret(statements);
+        return new CompiledScript(statements, locals, lazyBodies);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    private static void report(int line, String where,
-            String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
+    static void report(String message) {
+        System.err.println(message);
         hadError = true;
     }
 
-    static void error(Token token, String message) {
-        if (token.type() == TokenType.EOF) {
-            report(token.line(), " at end", message);
-        } else {
-            report(token.line(), " at '" + token.lexeme() + "'", message);
-        }
-    }
-
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage()
-                + "\n[line " + error.token.line() + "]");
+        System.err.println(error.describe());
         hadRuntimeError = true;
     }
 }
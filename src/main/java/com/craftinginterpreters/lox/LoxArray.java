@@ -0,0 +1,126 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A growable array, made by the native array(). Elements are kept in a
+ * double[] for as long as they are all numbers, which is what most arrays
+ * hold, and moved to an Object[] the first time anything else is stored.
+ */
+final class LoxArray implements LoxCollection {
+
+    private static final double[] NO_NUMBERS = {};
+
+    private static final long HEADER_BYTES = 48;
+
+    // Exactly one of these holds the elements.
+    private double[] numbers = NO_NUMBERS;
+    private Object[] values = null;
+    private int size = 0;
+
+    /** An array of {@code elements}, in order. */
+    static LoxArray of(Object[] elements) {
+        LoxArray array = new LoxArray();
+        for (Object element : elements) {
+            array.append(element);
+        }
+        return array;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long estimatedSize() {
+        return HEADER_BYTES + (values == null
+                ? numbers.length * Double.BYTES : values.length * 4L);
+    }
+
+    /** A copy of the elements. */
+    Object[] toArray() {
+        Object[] elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            elements[i] = values == null ? (Object) numbers[i] : values[i];
+        }
+        return elements;
+    }
+
+    Object get(Object index) {
+        int i = index(index);
+        return values == null ? (Object) numbers[i] : values[i];
+    }
+
+    void set(Object index, Object value) {
+        int i = index(index);
+        if (values == null) {
+            if (value instanceof Double number) {
+                numbers[i] = number;
+                return;
+            }
+            generalize();
+        }
+        values[i] = value;
+    }
+
+    void append(Object value) {
+        if (values == null) {
+            if (value instanceof Double number) {
+                if (size == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, grow(size));
+                }
+                numbers[size++] = number;
+                return;
+            }
+            generalize();
+        }
+
+        if (size == values.length) {
+            values = Arrays.copyOf(values, grow(size));
+        }
+        values[size++] = value;
+    }
+
+    private int index(Object index) {
+        if (!(index instanceof Double number) || number != Math.floor(number)) {
+            throw new NativeError("Array index must be an integer.");
+        }
+        if (number < 0 || number >= size) {
+            throw new NativeError("Array index out of bounds.");
+        }
+        return (int) (double) number;
+    }
+
+    private static int grow(int size) {
+        return Math.max(8, size * 2);
+    }
+
+    private void generalize() {
+        values = new Object[Math.max(numbers.length, 8)];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    @Override
+    public void print(StringBuilder builder, Set<LoxCollection> enclosing) {
+        builder.append('[');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            LoxCollection.print(
+                    values == null ? (Object) numbers[i] : values[i],
+                    builder, enclosing);
+        }
+        builder.append(']');
+    }
+
+    @Override
+    public String toString() {
+        return LoxCollection.toString(this);
+    }
+}
@@ -1,10 +1,37 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
+/**
+ * Something that can be called. Calls with up to three arguments go
+ * through the arity-specific methods, so that a callable that doesn't need
+ * an argument array, like most natives, can avoid allocating one. By
+ * default they all end up in {@link #call(Interpreter, Object[])}.
+ */
 interface LoxCallable {
 
+    Object[] NO_ARGUMENTS = {};
+
     int arity();
 
-    Object call(Interpreter interpreter, List<Object> arguments);
+    /**
+     * Calls with the arguments in an array that belongs to the callee from
+     * now on; a function uses it as the slots of its parameters.
+     */
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[]{a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[]{a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b,
+            Object c) {
+        return call(interpreter, new Object[]{a, b, c});
+    }
 }
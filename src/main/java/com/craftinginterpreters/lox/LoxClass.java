@@ -1,31 +1,36 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
-class LoxClass implements LoxCallable {
+final class LoxClass implements LoxCallable {
 
+    final Stmt.Class declaration;
     final String name;
     final LoxClass superclass;
+    // Every method the class responds to, inherited ones included, so that
+    // a lookup never has to walk up the superclass chain. Classes can't be
+    // changed once they're defined, so the table never goes stale.
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
 
-    LoxClass(String name, LoxClass superclass,
+    LoxClass(Stmt.Class declaration, LoxClass superclass,
             Map<String, LoxFunction> methods) {
+        this.declaration = declaration;
         this.superclass = superclass;
-        this.name = name;
-        this.methods = methods;
-    }
-
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        this.name = declaration.name().lexeme();
 
+        Map<String, LoxFunction> table = new HashMap<>();
         if (superclass != null) {
-            return superclass.findMethod(name);
+            table.putAll(superclass.methods);
         }
+        table.putAll(methods);
+        this.methods = Map.copyOf(table);
+        this.initializer = this.methods.get("init");
+    }
 
-        return null;
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 
     @Override
@@ -34,10 +39,8 @@ class LoxClass implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-            List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
             initializer.bind(instance).call(interpreter, arguments);
         }
@@ -47,7 +50,6 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) {
             return 0;
         }
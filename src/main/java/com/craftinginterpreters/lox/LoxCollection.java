@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A native collection, an array or a map. Collections compare by identity,
+ * like instances, and print their contents.
+ */
+interface LoxCollection {
+
+    int size();
+
+    /**
+     * A rough size in bytes of the collection and its tables, without the
+     * elements, for a memory budget.
+     */
+    long estimatedSize();
+
+    /**
+     * Writes the contents as print shows them. {@code enclosing} holds the
+     * collections being written around this one; a collection that
+     * contains itself is written as "...".
+     */
+    void print(StringBuilder builder, Set<LoxCollection> enclosing);
+
+    static String toString(LoxCollection collection) {
+        StringBuilder builder = new StringBuilder();
+        print(collection, builder,
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+        return builder.toString();
+    }
+
+    static void print(Object value, StringBuilder builder,
+            Set<LoxCollection> enclosing) {
+        if (!(value instanceof LoxCollection collection)) {
+            builder.append(Interpreter.stringify(value));
+        } else if (enclosing.add(collection)) {
+            collection.print(builder, enclosing);
+            enclosing.remove(collection);
+        } else {
+            builder.append("...");
+        }
+    }
+}
@@ -1,18 +1,33 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+final class LoxFunction implements LoxCallable {
 
-class LoxFunction implements LoxCallable {
-
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    final Stmt.Function declaration;
+    final Environment closure;
     private final boolean isInitializer;
+    private final Memo memo;
 
     LoxFunction(Stmt.Function declaration, Environment closure,
             boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure,
+            boolean isInitializer, Memo memo) {
         this.isInitializer = isInitializer;
         this.closure = closure;
         this.declaration = declaration;
+        this.memo = memo;
+    }
+
+    /** A copy of this function that remembers its results in a {@link Memo}. */
+    LoxFunction memoized() {
+        return new LoxFunction(declaration, closure, isInitializer,
+                new Memo(toString()));
+    }
+
+    boolean isMemoized() {
+        return memo != null;
     }
 
     LoxFunction bind(LoxInstance instance) {
@@ -33,27 +48,46 @@ class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-            List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params().size(); i++) {
-            environment.define(declaration.params().get(i).lexeme(),
-                    arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        interpreter.poll(declaration.name());
+        if (memo == null) {
+            return invoke(interpreter, arguments);
         }
 
+        Object key = Memo.key(arguments);
+        Object result = memo.get(key);
+        if (result == Memo.MISSING) {
+            result = invoke(interpreter, arguments);
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    private Object invoke(Interpreter interpreter, Object[] arguments) {
+        if (declaration.body() instanceof LazyBody body) {
+            body.load(interpreter);
+        }
+
+        // The arguments are the parameters' slots.
+        Environment environment = new Environment(closure, arguments);
+        long charged = interpreter.chargeCall(arguments.length);
+
         try {
             interpreter.executeBlock(declaration.body(), environment);
         }
         catch (Return returnValue) {
             if (isInitializer) {
-                return closure.getAt(0, "this");
+                return closure.getAt(0, 0);
             }
 
             return returnValue.value;
         }
+        finally {
+            interpreter.refund(charged);
+        }
 
         if (isInitializer) {
-            return closure.getAt(0, "this");
+            return closure.getAt(0, 0);
         }
         return null;
     }
@@ -5,7 +5,7 @@ import java.util.Map;
 
 class LoxInstance {
 
-    private final LoxClass klass;
+    final LoxClass klass;
     private final Map<String, Object> fields = new HashMap<>();
 
     LoxInstance(LoxClass klass) {
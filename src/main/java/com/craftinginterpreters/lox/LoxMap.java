@@ -0,0 +1,177 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A hash map from Lox values to Lox values, made by the native map(). Two
+ * keys are the same key if == says they are equal, so numbers, strings,
+ * booleans and nil are compared by value and anything else by identity.
+ *
+ * Keys and values sit side by side in two arrays, with linear probing in a
+ * table that is at most half full, so there are no entry objects. Removing
+ * a key moves the later keys of its run back, rather than leaving a
+ * tombstone. Keys come out in no particular order.
+ */
+final class LoxMap implements LoxCollection {
+
+    // A free slot, since nil is a valid key.
+    private static final Object EMPTY = new Object();
+
+    private static final int MIN_CAPACITY = 8;
+
+    private static final long HEADER_BYTES = 64;
+
+    private Object[] keys;
+    private Object[] values;
+    private int size = 0;
+    // How far to shift a scrambled hash to get an index into the table.
+    private int shift;
+
+    LoxMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Two references a slot.
+    @Override
+    public long estimatedSize() {
+        return HEADER_BYTES + keys.length * 8L;
+    }
+
+    /** The value for {@code key}, or nil if there isn't one. */
+    Object get(Object key) {
+        int slot = find(key);
+        return slot < 0 ? null : values[slot];
+    }
+
+    boolean has(Object key) {
+        return find(key) >= 0;
+    }
+
+    void set(Object key, Object value) {
+        // A LoxString key could hold on to a much longer buffer.
+        if (key instanceof LoxString string) {
+            key = string.toString();
+        }
+
+        int mask = keys.length - 1;
+        for (int i = index(key); ; i = (i + 1) & mask) {
+            if (keys[i] == EMPTY) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    resize(keys.length * 2);
+                }
+                return;
+            }
+            if (Interpreter.isEqual(keys[i], key)) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    /** Removes {@code key}, returning whether it was there. */
+    boolean remove(Object key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+
+        // Move back each later key of the run that may live at the slot.
+        int mask = keys.length - 1;
+        for (int i = (slot + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            int home = index(keys[i]);
+            if (((i - home) & mask) >= ((i - slot) & mask)) {
+                keys[slot] = keys[i];
+                values[slot] = values[i];
+                slot = i;
+            }
+        }
+        keys[slot] = EMPTY;
+        values[slot] = null;
+        size--;
+        return true;
+    }
+
+    LoxArray keys() {
+        LoxArray array = new LoxArray();
+        for (Object key : keys) {
+            if (key != EMPTY) {
+                array.append(key);
+            }
+        }
+        return array;
+    }
+
+    private int find(Object key) {
+        int mask = keys.length - 1;
+        for (int i = index(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (Interpreter.isEqual(keys[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Fibonacci hashing: the top bits of the hash code times 2^32 / phi.
+    // A LoxString has the same hash code as the String it equals.
+    private int index(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = index(oldKeys[j]);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    @Override
+    public void print(StringBuilder builder, Set<LoxCollection> enclosing) {
+        builder.append('{');
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY) {
+                continue;
+            }
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            LoxCollection.print(keys[i], builder, enclosing);
+            builder.append(": ");
+            LoxCollection.print(values[i], builder, enclosing);
+        }
+        builder.append('}');
+    }
+
+    @Override
+    public String toString() {
+        return LoxCollection.toString(this);
+    }
+}
@@ -0,0 +1,101 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A long string made by +. Building a string in a loop with + would copy
+ * everything so far on each iteration, so instead a LoxString is a prefix
+ * of a buffer that only ever grows. Adding to the LoxString that ends where
+ * its buffer ends appends to the buffer in place, and the new string is a
+ * longer prefix of the same buffer. Adding to any other string copies it
+ * into a new buffer with room to spare.
+ *
+ * Short results of + stay {@link String}s, and so do string literals, so a
+ * Lox string is either. The two are interchangeable: {@link
+ * Interpreter#isEqual} compares them by content, and a LoxString prints as
+ * its content, which it flattens into a String once, when first asked.
+ */
+final class LoxString implements CharSequence {
+
+    // Shorter results of + are copied, which is about as cheap as anything.
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat = null;
+
+    private LoxString(StringBuilder buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /** The result of adding two Lox strings. */
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        int length = left.length() + right.length();
+        if (length < MIN_LENGTH) {
+            return left.toString().concat(right.toString());
+        }
+
+        if (left instanceof LoxString string) {
+            synchronized (string.buffer) {
+                if (string.buffer.length() == string.length) {
+                    string.buffer.append(right.toString());
+                    return new LoxString(string.buffer, length);
+                }
+            }
+        }
+
+        StringBuilder buffer = new StringBuilder(length * 2);
+        buffer.append(left.toString()).append(right.toString());
+        return new LoxString(buffer, length);
+    }
+
+    /** The buffer this is a prefix of, which holds its characters. */
+    Object buffer() {
+        return buffer;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        synchronized (buffer) {
+            return buffer.charAt(index);
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String result = flat;
+        if (result == null) {
+            synchronized (buffer) {
+                result = buffer.substring(0, length);
+            }
+            flat = result;
+        }
+        return result;
+    }
+
+    /** Compares with a String or LoxString by content. */
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof String || other instanceof LoxString)
+                && ((CharSequence) other).length() == length
+                && toString().equals(other.toString());
+    }
+
+    /** The same as the hash code of the equal String. */
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of a memoized function, keyed by its arguments, as made by
+ * the native memoize(). Arguments are compared the way == compares them,
+ * so numbers, strings, booleans and nil by value and everything else by
+ * identity. Only calls that return are remembered.
+ *
+ * The table holds at most {@link #CAPACITY} results and forgets the least
+ * recently used one to make room. Whether the function is pure is up to
+ * the script; memoizing one that isn't changes what it does.
+ */
+final class Memo {
+
+    static final int CAPACITY = 1 << 16;
+
+    /** What {@link #get} returns for arguments it has no result for. */
+    static final Object MISSING = new Object();
+
+    // The tables made while --profile is on, to report on at the end.
+    private static final List<Memo> profiled = new ArrayList<>();
+
+    private final String name;
+    private final Map<Object, Object> results
+            = new LinkedHashMap<>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() > CAPACITY) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    Memo(String name) {
+        this.name = name;
+        if (Lox.profile) {
+            synchronized (profiled) {
+                profiled.add(this);
+            }
+        }
+    }
+
+    /**
+     * The key for a call's arguments. It must be made before the call,
+     * which may assign to the parameters.
+     */
+    static Object key(Object[] arguments) {
+        if (arguments.length == 1) {
+            return key(arguments[0]);
+        }
+
+        Object[] key = new Object[arguments.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = key(arguments[i]);
+        }
+        return Arrays.asList(key);
+    }
+
+    // A String doesn't equal a LoxString with the same content.
+    private static Object key(Object argument) {
+        return argument instanceof LoxString string
+                ? string.toString() : argument;
+    }
+
+    synchronized Object get(Object key) {
+        Object result = results.getOrDefault(key, MISSING);
+        if (result == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    synchronized void put(Object key, Object result) {
+        results.put(key, result);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long calls = hits + misses;
+        return String.format("memo %s: %d calls, %.1f%% hits, %d evictions",
+                name, calls, calls == 0 ? 0.0 : 100.0 * hits / calls,
+                evictions);
+    }
+
+    /** Prints the hit rates of the tables made while profiling. */
+    static void dump(PrintStream out) {
+        synchronized (profiled) {
+            profiled.forEach(out::println);
+        }
+    }
+}
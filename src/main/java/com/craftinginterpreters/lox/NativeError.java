@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * An error in a native function. Natives don't know where they were called
+ * from, so the interpreter reports it as a {@link RuntimeError} on the line
+ * of the call.
+ */
+class NativeError extends RuntimeException {
+
+    NativeError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,308 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * The functions every interpreter's globals start out with.
+ */
+final class Natives {
+
+    private Natives() {
+    }
+
+    /**
+     * A native function. It implements the arity-specific call method for
+     * its arity, which calls with an argument array are passed on to.
+     */
+    private abstract static class Native implements LoxCallable {
+
+        private final int arity;
+
+        Native(int arity) {
+            this.arity = arity;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return switch (arity) {
+                case 0 -> call0(interpreter);
+                case 1 -> call1(interpreter, arguments[0]);
+                case 2 -> call2(interpreter, arguments[0], arguments[1]);
+                default -> call3(interpreter, arguments[0], arguments[1],
+                        arguments[2]);
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    static void define(Globals globals) {
+        globals.define("clock", new Native(0) {
+
+            @Override
+            public Object call0(Interpreter interpreter) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        });
+
+        globals.define("memoize", new Native(1) {
+
+            @Override
+            public Object call1(Interpreter interpreter, Object function) {
+                if (!(function instanceof LoxFunction loxFunction)) {
+                    throw new NativeError("Can only memoize functions.");
+                }
+                return loxFunction.memoized();
+            }
+        });
+
+        defineArrays(globals);
+        defineMaps(globals);
+        defineParallel(globals);
+        defineTasks(globals);
+    }
+
+    // array() makes an empty array, and append(array, value) adds to one.
+    // get(), set() and length() work on arrays and maps alike.
+    private static void defineArrays(Globals globals) {
+        globals.define("array", new Native(0) {
+
+            @Override
+            public Object call0(Interpreter interpreter) {
+                return allocate(interpreter, new LoxArray());
+            }
+        });
+
+        globals.define("append", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object array,
+                    Object value) {
+                LoxArray loxArray = array(array);
+                long before = loxArray.estimatedSize();
+                loxArray.append(value);
+                interpreter.grown(loxArray, before);
+                return null;
+            }
+        });
+
+        globals.define("get", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object collection,
+                    Object key) {
+                if (collection instanceof LoxMap map) {
+                    return map.get(key);
+                }
+                if (collection instanceof LoxArray array) {
+                    return array.get(key);
+                }
+                throw new NativeError("Expected an array or map.");
+            }
+        });
+
+        globals.define("set", new Native(3) {
+
+            @Override
+            public Object call3(Interpreter interpreter, Object collection,
+                    Object key, Object value) {
+                if (!(collection instanceof LoxCollection loxCollection)) {
+                    throw new NativeError("Expected an array or map.");
+                }
+                long before = loxCollection.estimatedSize();
+                if (collection instanceof LoxMap map) {
+                    map.set(key, value);
+                } else {
+                    ((LoxArray) collection).set(key, value);
+                }
+                interpreter.grown(loxCollection, before);
+                return value;
+            }
+        });
+
+        globals.define("length", new Native(1) {
+
+            @Override
+            public Object call1(Interpreter interpreter, Object collection) {
+                if (collection instanceof LoxCollection loxCollection) {
+                    return (double) loxCollection.size();
+                }
+                throw new NativeError("Expected an array or map.");
+            }
+        });
+    }
+
+    // map() makes an empty map; get(map, key) gives nil for a missing
+    // key; has(map, key), remove(map, key) and keys(map), the keys in an
+    // array, work on maps only.
+    private static void defineMaps(Globals globals) {
+        globals.define("map", new Native(0) {
+
+            @Override
+            public Object call0(Interpreter interpreter) {
+                return allocate(interpreter, new LoxMap());
+            }
+        });
+
+        globals.define("has", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object map,
+                    Object key) {
+                return map(map).has(key);
+            }
+        });
+
+        globals.define("remove", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object map,
+                    Object key) {
+                return map(map).remove(key);
+            }
+        });
+
+        globals.define("keys", new Native(1) {
+
+            @Override
+            public Object call1(Interpreter interpreter, Object map) {
+                return allocate(interpreter, map(map).keys());
+            }
+        });
+    }
+
+    // parallelMap(array, fn), parallelFilter(array, fn) and
+    // parallelReduce(array, fn, initial) call fn on several threads; see
+    // Parallel.
+    private static void defineParallel(Globals globals) {
+        globals.define("parallelMap", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object array,
+                    Object function) {
+                return Parallel.map(interpreter, array(array),
+                        function(function, 1));
+            }
+        });
+
+        globals.define("parallelFilter", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object array,
+                    Object function) {
+                return Parallel.filter(interpreter, array(array),
+                        function(function, 1));
+            }
+        });
+
+        globals.define("parallelReduce", new Native(3) {
+
+            @Override
+            public Object call3(Interpreter interpreter, Object array,
+                    Object function, Object initial) {
+                return Parallel.reduce(interpreter, array(array),
+                        function(function, 2), initial);
+            }
+        });
+    }
+
+    // spawn(fn) calls fn on a new task, channel(capacity) makes a channel
+    // and send(channel, value) and receive(channel) use one; see
+    // Scheduler.
+    private static void defineTasks(Globals globals) {
+        globals.define("spawn", new Native(1) {
+
+            @Override
+            public Object call1(Interpreter interpreter, Object function) {
+                checkNotParallel(interpreter);
+                interpreter.scheduler.spawn(interpreter,
+                        function(function, 0));
+                return null;
+            }
+        });
+
+        globals.define("channel", new Native(1) {
+
+            @Override
+            public Object call1(Interpreter interpreter, Object capacity) {
+                if (!(capacity instanceof Double number)
+                        || number != Math.floor(number) || number < 1) {
+                    throw new NativeError(
+                            "Channel capacity must be a positive integer.");
+                }
+                return new Channel(interpreter.scheduler,
+                        (int) Math.min(number, Integer.MAX_VALUE));
+            }
+        });
+
+        globals.define("send", new Native(2) {
+
+            @Override
+            public Object call2(Interpreter interpreter, Object channel,
+                    Object value) {
+                checkNotParallel(interpreter);
+                channel(channel).send(value);
+                return null;
+            }
+        });
+
+        globals.define("receive", new Native(1) {
+
+            @Override
+            public Object call1(Interpreter interpreter, Object channel) {
+                checkNotParallel(interpreter);
+                return channel(channel).receive();
+            }
+        });
+    }
+
+    private static void checkNotParallel(Interpreter interpreter) {
+        if (interpreter.globals.isFrozen()) {
+            throw new NativeError(
+                    "Can't use tasks or channels in a parallel task.");
+        }
+    }
+
+    private static Channel channel(Object value) {
+        if (value instanceof Channel channel) {
+            return channel;
+        }
+        throw new NativeError("Expected a channel.");
+    }
+
+    private static LoxCallable function(Object value, int arity) {
+        if (value instanceof LoxCallable function
+                && function.arity() == arity) {
+            return function;
+        }
+        throw new NativeError("Expected a function that takes " + arity
+                + (arity == 1 ? " argument." : " arguments."));
+    }
+
+    // Charges the interpreter's memory budget for a new collection.
+    private static <T extends LoxCollection> T allocate(
+            Interpreter interpreter, T collection) {
+        interpreter.allocate(collection.estimatedSize());
+        return collection;
+    }
+
+    private static LoxMap map(Object value) {
+        if (value instanceof LoxMap map) {
+            return map;
+        }
+        throw new NativeError("Expected a map.");
+    }
+
+    private static LoxArray array(Object value) {
+        if (value instanceof LoxArray array) {
+            return array;
+        }
+        throw new NativeError("Expected an array.");
+    }
+}
@@ -0,0 +1,103 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optimized code for part of a syntax tree, installed as the code of an
+ * {@link Expr.Optimized} or {@link Stmt.Optimized} next to the tree it
+ * replaces. While it is valid the interpreter runs it; once it isn't, the
+ * interpreter runs the original tree instead, for good.
+ *
+ * Optimized code may speculate, on the types a profile has seen or on
+ * {@link Assumption}s. There are two ways back to the baseline:
+ *
+ * An assumption being invalidated invalidates every optimization built on
+ * it, which takes effect the next time the node is reached.
+ *
+ * A guard failing in the middle of running, say an operand that is a
+ * string after all, calls {@link #deoptimize()} and finishes that one
+ * execution the baseline way. Optimized code keeps its variables in the
+ * same environment slots as the baseline and evaluates subexpressions in
+ * the same order, so the only state to hand over is the values it has
+ * already computed. It passes them to the interpreter's operations on
+ * values, such as {@link Interpreter#binary}, and never evaluates a
+ * subexpression twice. A node whose guards keep failing is invalidated.
+ */
+abstract class Optimization {
+
+    private static final int MAX_DEOPTIMIZATIONS = 8;
+
+    private static final AtomicLong deoptimizations = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+
+    private volatile boolean valid = true;
+    // Not synchronized: parallel workers may lose a few failures, which
+    // only puts off giving up on the node.
+    private int failures = 0;
+
+    Optimization(Assumption... assumptions) {
+        for (Assumption assumption : assumptions) {
+            dependOn(assumption);
+        }
+    }
+
+    /** Code standing in for an expression. */
+    abstract static class ForExpr extends Optimization {
+
+        ForExpr(Assumption... assumptions) {
+            super(assumptions);
+        }
+
+        abstract Object evaluate(Interpreter interpreter);
+    }
+
+    /** Code standing in for a statement. */
+    abstract static class ForStmt extends Optimization {
+
+        ForStmt(Assumption... assumptions) {
+            super(assumptions);
+        }
+
+        abstract void execute(Interpreter interpreter);
+    }
+
+    /**
+     * Makes this optimization invalid once {@code assumption} is, for
+     * assumptions that only become known at run time.
+     */
+    final void dependOn(Assumption assumption) {
+        assumption.register(this);
+    }
+
+    final boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Records that a guard failed. The caller must finish the current
+     * execution on the baseline path.
+     */
+    final void deoptimize() {
+        deoptimizations.incrementAndGet();
+        if (++failures >= MAX_DEOPTIMIZATIONS) {
+            invalidate();
+        }
+    }
+
+    final void invalidate() {
+        if (valid) {
+            valid = false;
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /** How many times optimized code has fallen back so far. */
+    static long deoptimizations() {
+        return deoptimizations.get();
+    }
+
+    /** How many optimizations have been given up on so far. */
+    static long invalidations() {
+        return invalidations.get();
+    }
+}
@@ -0,0 +1,675 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Rewrites a resolved script, replacing the patterns {@link Fused} knows
+ * with {@link Expr.Optimized} and {@link Stmt.Optimized} nodes, and
+ * inlining calls to small global functions. Enabled with --optimize; level
+ * 2, --optimize=2, also hoists loop invariants (see {@link LoopInvariants}).
+ *
+ * Variables the resolver found are never assigned after their initializer
+ * are replaced by their value when it is a constant, and operators on
+ * constants are folded. Local variables become literals; globals become
+ * {@link FoldedConstant}s, since another script could still assign them.
+ *
+ * The tree is rebuilt only along the paths that changed. A rebuilt node
+ * keeps its profile and call site, and a rebuilt assignment takes over the
+ * slot of the one it replaces. Bodies of lazily parsed functions are
+ * optimized when they are loaded.
+ */
+class Optimizer {
+
+    static final int BASIC = 1;
+    static final int HOIST_LOOP_INVARIANTS = 2;
+    static final int MAX_LEVEL = HOIST_LOOP_INVARIANTS;
+
+    // Functions bigger than this many nodes aren't inlined.
+    private static final int MAX_INLINE_SIZE = 24;
+
+    /**
+     * The value of a constant expression, and the globals it was computed
+     * from that have to be checked at run time.
+     */
+    private record Known(Object value, List<FoldedConstant.Guard> guards) {
+
+        Known(Object value) {
+            this(value, List.of());
+        }
+    }
+
+    /** A slot of a local scope. */
+    private record Declared(boolean constant, Known value) {
+
+    }
+
+    private final Map<Expr, Environment.Slot> locals;
+    private final int level;
+    private final Map<String, Stmt.Function> inlinable = new HashMap<>();
+    private final Map<String, Known> globalConstants = new HashMap<>();
+    // The top-level functions that are pure or only read fields.
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    private final Map<String, Purity> purity = new HashMap<>();
+    // The slots of the scopes enclosing the code being optimized, as the
+    // resolver laid them out.
+    private final List<List<Declared>> scopes = new ArrayList<>();
+
+    private Optimizer(Map<Expr, Environment.Slot> locals, int level) {
+        this.locals = locals;
+        this.level = level;
+    }
+
+    static CompiledScript optimize(CompiledScript script, int level) {
+        Map<Expr, Environment.Slot> locals
+                = new IdentityHashMap<>(script.locals());
+        List<Stmt> statements = script.statements();
+        Optimizer optimizer = new Optimizer(locals, level);
+        optimizer.inlinable.putAll(findInlinable(statements));
+        optimizer.globalConstants.putAll(findGlobalConstants(statements));
+        if (level >= HOIST_LOOP_INVARIANTS) {
+            optimizer.analyzePurity(statements);
+        }
+        return new CompiledScript(optimizer.optimize(statements), locals,
+                script.lazyBodies());
+    }
+
+    /**
+     * Optimizes the body of a function with {@code arity} parameters, whose
+     * slots are in {@code locals}, adding the slots of any nodes it
+     * rebuilds.
+     */
+    static List<Stmt> optimizeBody(List<Stmt> body, int arity,
+            Map<Expr, Environment.Slot> locals, int level) {
+        Optimizer optimizer = new Optimizer(locals, level);
+        optimizer.beginScope(arity);
+        return optimizer.optimize(body);
+    }
+
+    private void analyzePurity(List<Stmt> statements) {
+        Set<String> constants = new HashSet<>();
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Var var && var.binding().isConstant()) {
+                constants.add(var.name().lexeme());
+            }
+        }
+
+        Map<String, Stmt.Function> candidates = Purity.candidates(statements,
+                Purity.assignedNames(statements));
+        purity.putAll(Purity.of(candidates, constants, locals));
+        purity.keySet().forEach(name -> functions.put(name,
+                candidates.get(name)));
+    }
+
+    private <T extends Stmt> List<T> optimize(List<T> statements) {
+        if (statements instanceof LazyBody) {
+            return statements;
+        }
+
+        List<T> optimized = null;
+        for (int i = 0; i < statements.size(); i++) {
+            T statement = statements.get(i);
+            @SuppressWarnings("unchecked")
+            T replacement = (T) optimize(statement);
+            if (replacement != statement && optimized == null) {
+                optimized = new ArrayList<>(statements.subList(0, i));
+            }
+            if (optimized != null) {
+                optimized.add(replacement);
+            }
+        }
+        return optimized == null ? statements : optimized;
+    }
+
+    private Stmt.Function optimizeFunction(Stmt.Function function) {
+        beginScope(function.params().size());
+        List<Stmt> body = optimize(function.body());
+        endScope();
+        return body == function.body()
+                ? function
+                : new Stmt.Function(function.name(), function.params(), body);
+    }
+
+    private List<Expr> optimizeExprs(List<Expr> exprs) {
+        List<Expr> optimized = null;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr expr = exprs.get(i);
+            Expr replacement = optimize(expr);
+            if (replacement != expr && optimized == null) {
+                optimized = new ArrayList<>(exprs.subList(0, i));
+            }
+            if (optimized != null) {
+                optimized.add(replacement);
+            }
+        }
+        return optimized == null ? exprs : optimized;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        if (stmt == null) {
+            return null;
+        }
+
+        return switch (stmt) {
+            case Stmt.Block s -> {
+                beginScope(0);
+                List<Stmt> statements = optimize(s.statements());
+                endScope();
+                yield statements == s.statements()
+                        ? s : new Stmt.Block(statements);
+            }
+            case Stmt.Class s -> {
+                declare(null);
+                if (s.superclass() != null) {
+                    beginScope(1);
+                }
+                beginScope(1);
+                List<Stmt.Function> methods = null;
+                for (int i = 0; i < s.methods().size(); i++) {
+                    Stmt.Function method = s.methods().get(i);
+                    Stmt.Function replacement = optimizeFunction(method);
+                    if (replacement != method && methods == null) {
+                        methods = new ArrayList<>(s.methods().subList(0, i));
+                    }
+                    if (methods != null) {
+                        methods.add(replacement);
+                    }
+                }
+                endScope();
+                if (s.superclass() != null) {
+                    endScope();
+                }
+                yield methods == null
+                        ? s : new Stmt.Class(s.name(), s.superclass(), methods);
+            }
+            case Stmt.Expression s -> {
+                Expr expression = optimize(s.expression());
+                yield expression == s.expression()
+                        ? s : new Stmt.Expression(expression);
+            }
+            case Stmt.Function s -> {
+                declare(null);
+                // Functions that get inlined are left as they are, since
+                // the inlined code checks that the callee is this very
+                // declaration.
+                yield inlinable.get(s.name().lexeme()) == s
+                        ? s : optimizeFunction(s);
+            }
+            case Stmt.If s -> {
+                Expr condition = optimize(s.condition());
+                Stmt thenBranch = optimize(s.thenBranch());
+                Stmt elseBranch = optimize(s.elseBranch());
+                yield condition == s.condition()
+                        && thenBranch == s.thenBranch()
+                        && elseBranch == s.elseBranch()
+                        ? s : new Stmt.If(condition, thenBranch, elseBranch);
+            }
+            case Stmt.Optimized s -> s;
+            case Stmt.Print s -> {
+                Expr expression = optimize(s.expression());
+                yield expression == s.expression()
+                        ? s : new Stmt.Print(expression);
+            }
+            case Stmt.Return s -> {
+                Expr value = optimize(s.value());
+                yield value == s.value()
+                        ? s : new Stmt.Return(s.keyword(), value);
+            }
+            case Stmt.Var s -> {
+                Expr initializer = optimize(s.initializer());
+                Known known = s.binding().isConstant()
+                        ? initializer == null ? new Known(null)
+                        : known(initializer) : null;
+                if (!scopes.isEmpty()) {
+                    declare(new Declared(s.binding().isConstant(), known));
+                } else if (known != null) {
+                    globalConstants.put(s.name().lexeme(), known);
+                }
+                yield initializer == s.initializer()
+                        ? s : new Stmt.Var(s.name(), initializer, s.binding());
+            }
+            case Stmt.While s -> {
+                if (level >= HOIST_LOOP_INVARIANTS) {
+                    Stmt hoisted = hoistInvariants(s);
+                    if (hoisted != null) {
+                        yield hoisted;
+                    }
+                }
+                Expr condition = optimize(s.condition());
+                Stmt body = optimize(s.body());
+                Stmt.While loop = condition == s.condition()
+                        && body == s.body()
+                        ? s : new Stmt.While(s.keyword(), condition, body);
+                yield fuseLoop(loop);
+            }
+        };
+    }
+
+    private Expr optimize(Expr expr) {
+        if (expr == null) {
+            return null;
+        }
+
+        return switch (expr) {
+            case Expr.Assign e -> {
+                Expr value = optimize(e.value());
+                Expr.Assign assign = e;
+                if (value != e.value()) {
+                    assign = new Expr.Assign(e.name(), value, e.global());
+                    Environment.Slot slot = locals.get(e);
+                    if (slot != null) {
+                        locals.put(assign, slot);
+                    }
+                }
+                yield fuseIncrement(assign);
+            }
+            case Expr.Binary e -> {
+                Expr left = optimize(e.left());
+                Expr right = optimize(e.right());
+                Expr.Binary binary = left == e.left() && right == e.right()
+                        ? e : new Expr.Binary(left, e.operator(), right,
+                                e.profile());
+                Known a = known(left);
+                Known b = known(right);
+                if (a != null && b != null) {
+                    Expr folded = fold(binary, () -> Interpreter.binary(
+                            e.operator(), a.value(), b.value()), a, b);
+                    if (folded != null) {
+                        yield folded;
+                    }
+                }
+                yield fuseCompare(binary);
+            }
+            case Expr.Call e -> {
+                Expr callee = optimize(e.callee());
+                List<Expr> arguments = optimizeExprs(e.arguments());
+                Expr.Call call = callee == e.callee()
+                        && arguments == e.arguments()
+                        ? e : new Expr.Call(callee, e.paren(), arguments,
+                                e.site(), e.profile());
+                yield inline(call);
+            }
+            case Expr.Get e -> {
+                Expr object = optimize(e.object());
+                yield object == e.object()
+                        ? e : new Expr.Get(object, e.name(), e.profile());
+            }
+            case Expr.Grouping e -> {
+                Expr expression = optimize(e.expression());
+                if (known(expression) != null) {
+                    yield expression;
+                }
+                yield expression == e.expression()
+                        ? e : new Expr.Grouping(expression);
+            }
+            case Expr.Literal e -> e;
+            case Expr.Logical e -> {
+                Expr left = optimize(e.left());
+                Expr right = optimize(e.right());
+                Known known = known(left);
+                // A constant left operand decides which side is the value;
+                // without globals to check, the other side can go.
+                if (known != null && known.guards().isEmpty()) {
+                    boolean truthy = Interpreter.isTruthy(known.value());
+                    yield truthy == (e.operator().type() == TokenType.OR)
+                            ? left : right;
+                }
+                yield left == e.left() && right == e.right()
+                        ? e : new Expr.Logical(left, e.operator(), right);
+            }
+            case Expr.Optimized e -> e;
+            case Expr.Set e -> {
+                Expr object = optimize(e.object());
+                Expr value = optimize(e.value());
+                Expr.Set set = object == e.object() && value == e.value()
+                        ? e : new Expr.Set(object, e.name(), value);
+                yield fuseFieldUpdate(set);
+            }
+            case Expr.Super e -> e;
+            case Expr.This e -> e;
+            case Expr.Unary e -> {
+                Expr right = optimize(e.right());
+                Expr.Unary unary = right == e.right()
+                        ? e : new Expr.Unary(e.operator(), right, e.profile());
+                Known known = known(right);
+                if (known != null) {
+                    Expr folded = fold(unary, () -> Interpreter.unary(
+                            e.operator(), known.value()), known);
+                    if (folded != null) {
+                        yield folded;
+                    }
+                }
+                yield unary;
+            }
+            case Expr.Variable e -> propagate(e);
+        };
+    }
+
+    // x = x + k and x = x - k.
+    private Expr fuseIncrement(Expr.Assign assign) {
+        if (!(assign.value() instanceof Expr.Binary binary)
+                || !(binary.left() instanceof Expr.Variable variable)
+                || !(binary.right() instanceof Expr.Literal literal)
+                || !(literal.value() instanceof Double operand)
+                || !isAdditive(binary.operator())
+                || !sameVariable(assign, assign.name(), variable)) {
+            return assign;
+        }
+
+        return new Expr.Optimized(assign, new Fused.Increment(
+                target(assign, assign.name(), assign.global()),
+                binary.operator(), operand));
+    }
+
+    // Comparisons of variables and number literals, as in i < n.
+    private Expr fuseCompare(Expr.Binary binary) {
+        switch (binary.operator().type()) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> {
+            }
+            default -> {
+                return binary;
+            }
+        }
+
+        Fused.Operand left = operand(binary.left());
+        Fused.Operand right = operand(binary.right());
+        if (left == null || right == null) {
+            return binary;
+        }
+
+        return new Expr.Optimized(binary,
+                new Fused.Compare(binary.operator(), left, right));
+    }
+
+    // a.b = a.b + x, for any arithmetic operator.
+    private Expr fuseFieldUpdate(Expr.Set set) {
+        if (!(set.object() instanceof Expr.Variable object)
+                || !(set.value() instanceof Expr.Binary binary)
+                || !(binary.left() instanceof Expr.Get get)
+                || !(get.object() instanceof Expr.Variable getObject)
+                || !get.name().lexeme().equals(set.name().lexeme())
+                || !sameVariable(object, object.name(), getObject)) {
+            return set;
+        }
+
+        switch (binary.operator().type()) {
+            case PLUS, MINUS, STAR, SLASH -> {
+            }
+            default -> {
+                return set;
+            }
+        }
+
+        return new Expr.Optimized(set, new Fused.FieldUpdate(
+                target(object, object.name(), object.global()),
+                get.name(), set.name(), binary.operator(), binary.right()));
+    }
+
+    private Expr inline(Expr.Call call) {
+        if (!(call.callee() instanceof Expr.Variable callee)
+                || locals.containsKey(callee)) {
+            return call;
+        }
+
+        Stmt.Function function = inlinable.get(callee.name().lexeme());
+        if (function == null
+                || function.params().size() != call.arguments().size()) {
+            return call;
+        }
+
+        Expr body = ((Stmt.Return) function.body().get(0)).value();
+        return new Expr.Optimized(call,
+                new InlinedCall(call, callee, function, body));
+    }
+
+    // The top-level functions whose whole body is "return <expression>;",
+    // which is small and doesn't refer to the function itself. They must
+    // be the only top-level declaration of their name.
+    private static Map<String, Stmt.Function> findInlinable(
+            List<Stmt> statements) {
+        Map<String, Stmt.Function> functions = new HashMap<>();
+        Map<String, Integer> declarations = new HashMap<>();
+        for (Stmt stmt : statements) {
+            Token name = switch (stmt) {
+                case Stmt.Class s -> s.name();
+                case Stmt.Function s -> s.name();
+                case Stmt.Var s -> s.name();
+                default -> null;
+            };
+            if (name == null) {
+                continue;
+            }
+            declarations.merge(name.lexeme(), 1, Integer::sum);
+
+            if (stmt instanceof Stmt.Function function
+                    && !(function.body() instanceof LazyBody)
+                    && function.body().size() == 1
+                    && function.body().get(0) instanceof Stmt.Return body
+                    && body.value() != null
+                    && size(body.value(), name.lexeme()) <= MAX_INLINE_SIZE) {
+                functions.put(name.lexeme(), function);
+            }
+        }
+
+        functions.keySet().removeIf(name -> declarations.get(name) > 1);
+        return functions;
+    }
+
+    // The number of nodes in an expression, or more than any limit if it
+    // mentions the variable "self".
+    private static int size(Expr expr, String self) {
+        return 1 + switch (expr) {
+            case Expr.Assign e -> e.name().lexeme().equals(self)
+                    ? Integer.MAX_VALUE / 2 : size(e.value(), self);
+            case Expr.Binary e -> size(e.left(), self) + size(e.right(), self);
+            case Expr.Call e -> {
+                int size = size(e.callee(), self);
+                for (Expr argument : e.arguments()) {
+                    size += size(argument, self);
+                }
+                yield size;
+            }
+            case Expr.Get e -> size(e.object(), self);
+            case Expr.Grouping e -> size(e.expression(), self);
+            case Expr.Literal e -> 0;
+            case Expr.Logical e -> size(e.left(), self) + size(e.right(), self);
+            case Expr.Optimized e -> size(e.original(), self);
+            case Expr.Set e -> size(e.object(), self) + size(e.value(), self);
+            case Expr.Super e -> 0;
+            case Expr.This e -> 0;
+            case Expr.Unary e -> size(e.right(), self);
+            case Expr.Variable e -> e.name().lexeme().equals(self)
+                    ? Integer.MAX_VALUE / 2 : 0;
+        };
+    }
+
+    // A constant variable's value in place of reading it.
+    private Expr propagate(Expr.Variable variable) {
+        Environment.Slot slot = locals.get(variable);
+        if (slot == null) {
+            Known known = globalConstants.get(variable.name().lexeme());
+            if (known == null) {
+                return variable;
+            }
+            return new Expr.Optimized(variable, new FoldedConstant(
+                    known.value(),
+                    List.of(new FoldedConstant.Guard(variable, known.value())),
+                    variable));
+        }
+
+        int scope = scopes.size() - 1 - slot.depth();
+        if (scope < 0) {
+            return variable;
+        }
+        Declared declared = scopes.get(scope).get(slot.index());
+        if (declared == null || declared.value() == null) {
+            return variable;
+        }
+        return constant(variable, declared.value());
+    }
+
+    // The result of an operator on constants, or null if it fails, in
+    // which case it is left to fail at run time.
+    private Expr fold(Expr expr, Supplier<Object> operation,
+            Known... operands) {
+        Object value;
+        try {
+            value = operation.get();
+        }
+        catch (RuntimeError error) {
+            return null;
+        }
+        if (value instanceof LoxString string) {
+            value = string.toString(); // Literals hold Strings.
+        }
+
+        List<FoldedConstant.Guard> guards = new ArrayList<>();
+        for (Known operand : operands) {
+            guards.addAll(operand.guards());
+        }
+        return constant(expr, new Known(value, guards));
+    }
+
+    private static Expr constant(Expr original, Known known) {
+        if (known.guards().isEmpty()) {
+            return new Expr.Literal(known.value());
+        }
+        return new Expr.Optimized(original, new FoldedConstant(
+                known.value(), known.guards(), original));
+    }
+
+    private static Known known(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return new Known(literal.value());
+        }
+        if (expr instanceof Expr.Optimized optimized
+                && optimized.code() instanceof FoldedConstant constant) {
+            return new Known(constant.value(), constant.guards());
+        }
+        return null;
+    }
+
+    // The top-level constants with a literal value, known before any code
+    // that reads them is optimized. Folded values are added as the
+    // optimizer gets to them.
+    private static Map<String, Known> findGlobalConstants(
+            List<Stmt> statements) {
+        Map<String, Known> constants = new HashMap<>();
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Var var && var.binding().isConstant()) {
+                if (var.initializer() == null) {
+                    constants.put(var.name().lexeme(), new Known(null));
+                } else if (var.initializer() instanceof Expr.Literal literal) {
+                    constants.put(var.name().lexeme(),
+                            new Known(literal.value()));
+                }
+            }
+        }
+        return constants;
+    }
+
+    private void beginScope(int slots) {
+        List<Declared> scope = new ArrayList<>();
+        for (int i = 0; i < slots; i++) {
+            scope.add(null);
+        }
+        scopes.add(scope);
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    // Takes the next slot of the innermost scope, if there is one.
+    private void declare(Declared declared) {
+        if (!scopes.isEmpty()) {
+            scopes.get(scopes.size() - 1).add(declared);
+        }
+    }
+
+    private Stmt hoistInvariants(Stmt.While loop) {
+        LoopInvariants.Result result = LoopInvariants.hoist(loop, locals,
+                purity, functions, this::isConstant);
+        if (result == null) {
+            return null;
+        }
+
+        // Both the condition and the body now run in the loop's scope.
+        beginScope(result.invariants());
+        Expr condition = optimize(result.condition());
+        List<Stmt> body = optimize(result.body());
+        endScope();
+        return new Stmt.Optimized(loop, new Hoisting.Loop(loop, condition,
+                body, result.invariants(), result.guards()));
+    }
+
+    private boolean isConstant(Environment.Slot slot) {
+        int scope = scopes.size() - 1 - slot.depth();
+        if (scope < 0) {
+            return false;
+        }
+        Declared declared = scopes.get(scope).get(slot.index());
+        return declared != null && declared.constant();
+    }
+
+    private Stmt fuseLoop(Stmt.While loop) {
+        if (!(loop.body() instanceof Stmt.Block block)
+                || block.statements().stream().anyMatch(Optimizer::declares)) {
+            return loop;
+        }
+
+        return new Stmt.Optimized(loop,
+                new Fused.Loop(loop.keyword(), loop.condition(),
+                        block.statements()));
+    }
+
+    private static boolean declares(Stmt stmt) {
+        return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function
+                || stmt instanceof Stmt.Class;
+    }
+
+    private static boolean isAdditive(Token operator) {
+        return operator.type() == TokenType.PLUS
+                || operator.type() == TokenType.MINUS;
+    }
+
+    // Whether a variable expression refers to the same variable as an
+    // assignment or another variable expression with the given name.
+    private boolean sameVariable(Expr expr, Token name, Expr.Variable other) {
+        if (!name.lexeme().equals(other.name().lexeme())) {
+            return false;
+        }
+
+        Environment.Slot slot = locals.get(expr);
+        Environment.Slot otherSlot = locals.get(other);
+        return slot == null ? otherSlot == null : slot.equals(otherSlot);
+    }
+
+    private Fused.Target target(Expr expr, Token name, Globals.Site global) {
+        Environment.Slot slot = locals.get(expr);
+        if (slot != null) {
+            return new Fused.Local(slot);
+        }
+        return new Fused.Global(global, name);
+    }
+
+    private Fused.Operand operand(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return new Fused.Constant(literal.value());
+        }
+        if (expr instanceof Expr.Optimized optimized
+                && optimized.code() instanceof FoldedConstant constant) {
+            return constant;
+        }
+        if (expr instanceof Expr.Variable variable) {
+            return target(variable, variable.name(), variable.global());
+        }
+        return null;
+    }
+}
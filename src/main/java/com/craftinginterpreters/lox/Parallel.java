@@ -0,0 +1,194 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The data-parallel natives: parallelMap(array, fn), parallelFilter(array,
+ * fn) and parallelReduce(array, fn, initial). The array is split into
+ * chunks that run as tasks in the common {@link ForkJoinPool}, each on an
+ * interpreter of its own forked from the caller's, so they share its
+ * globals but not its environment.
+ *
+ * The globals are read-only while the tasks run: assigning to one is a
+ * runtime error, even when it all runs on one thread. Arrays, maps and
+ * instances aren't protected, so a callback that changes one that other
+ * calls can see races with them. Output from the callbacks may come in any
+ * order.
+ *
+ * If callbacks fail, the error reported is that of the first element that
+ * failed, as it would be if the elements were done one by one. Chunks past
+ * that element stop early.
+ */
+final class Parallel {
+
+    // Chunks per thread, so that a thread that finishes early can take
+    // work from one that's slow.
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // What a chunk of parallelReduce() starts from instead of a value.
+    private static final Object FIRST = new Object();
+
+    private Parallel() {
+    }
+
+    /** An array of {@code function}'s result for each element. */
+    static LoxArray map(Interpreter interpreter, LoxArray array,
+            LoxCallable function) {
+        Object[] elements = array.toArray();
+        Object[] results = new Object[elements.length];
+        run(interpreter, elements.length, null, (worker, unused, i) ->
+                results[i] = function.call1(worker, elements[i]));
+        LoxArray result = LoxArray.of(results);
+        interpreter.allocate(result.estimatedSize());
+        return result;
+    }
+
+    /** An array of the elements {@code function} returns true for. */
+    static LoxArray filter(Interpreter interpreter, LoxArray array,
+            LoxCallable function) {
+        Object[] elements = array.toArray();
+        boolean[] kept = new boolean[elements.length];
+        run(interpreter, elements.length, null, (worker, unused, i) ->
+                kept[i] = Interpreter.isTruthy(
+                        function.call1(worker, elements[i])));
+
+        LoxArray result = new LoxArray();
+        for (int i = 0; i < elements.length; i++) {
+            if (kept[i]) {
+                result.append(elements[i]);
+            }
+        }
+        interpreter.allocate(result.estimatedSize());
+        return result;
+    }
+
+    /**
+     * The elements combined with {@code function}, starting from
+     * {@code initial}. Each chunk is combined on its own and the results
+     * are then combined in order, so {@code function} has to be
+     * associative for this to mean the same as a fold.
+     */
+    static Object reduce(Interpreter interpreter, LoxArray array,
+            LoxCallable function, Object initial) {
+        Object[] elements = array.toArray();
+        List<Object> partials = run(interpreter, elements.length, FIRST,
+                (worker, left, i) -> left == FIRST ? elements[i]
+                        : function.call2(worker, left, elements[i]));
+
+        Object result = initial;
+        for (Object partial : partials) {
+            result = function.call2(interpreter, result, partial);
+        }
+        return result;
+    }
+
+    /**
+     * What is done for element {@code i}, on a worker interpreter, given
+     * what was returned for the element before it in the same chunk.
+     */
+    private interface Step {
+
+        Object apply(Interpreter worker, Object previous, int i);
+    }
+
+    // What the chunks of one operation share: the index of the first
+    // element that failed so far, and its error.
+    private static final class Failure {
+
+        private final AtomicInteger index
+                = new AtomicInteger(Integer.MAX_VALUE);
+        private RuntimeException error = null;
+
+        synchronized void record(int at, RuntimeException thrown) {
+            if (at < index.get()) {
+                index.set(at);
+                error = thrown;
+            }
+        }
+    }
+
+    private static final class Chunk extends RecursiveTask<Object> {
+
+        private final Interpreter worker;
+        private final int from;
+        private final int to;
+        private final Object start;
+        private final Step step;
+        private final Failure failure;
+
+        Chunk(Interpreter worker, int from, int to, Object start, Step step,
+                Failure failure) {
+            this.worker = worker;
+            this.from = from;
+            this.to = to;
+            this.start = start;
+            this.step = step;
+            this.failure = failure;
+        }
+
+        @Override
+        protected Object compute() {
+            Object result = start;
+            // An element after one that failed no longer matters.
+            for (int i = from; i < to && i < failure.index.get(); i++) {
+                try {
+                    result = step.apply(worker, result, i);
+                }
+                catch (RuntimeError | NativeError error) {
+                    failure.record(i, error);
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    // The result of each chunk, in order.
+    private static List<Object> run(Interpreter interpreter, int length,
+            Object start, Step step) {
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        boolean sequential = threads == 1;
+        if (!sequential) {
+            // A lazily parsed body that a worker loaded would be resolved
+            // into data the other workers are reading, so load them all
+            // first.
+            LazyBody.loadAll(interpreter);
+        }
+        int count = Math.min(length,
+                sequential ? 1 : threads * CHUNKS_PER_THREAD);
+
+        Failure failure = new Failure();
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chunks.add(new Chunk(
+                    sequential ? interpreter : interpreter.fork(),
+                    (int) ((long) length * i / count),
+                    (int) ((long) length * (i + 1) / count),
+                    start, step, failure));
+        }
+
+        List<Object> results = new ArrayList<>();
+        interpreter.globals.freeze();
+        try {
+            if (sequential) {
+                chunks.forEach(chunk -> results.add(chunk.compute()));
+            } else {
+                ForkJoinTask.invokeAll(chunks);
+                chunks.forEach(chunk -> results.add(chunk.join()));
+            }
+        }
+        finally {
+            interpreter.globals.thaw();
+        }
+
+        if (failure.error != null) {
+            throw failure.error;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the front end over many script files at once. Each file is
+ * scanned, parsed and resolved in its own task with its own
+ * {@link ErrorList}, since nothing in the front end is shared between
+ * files. Running them is left to the caller.
+ */
+class ParallelCompiler {
+
+    /**
+     * A compiled file. The script is null if the file had errors.
+     */
+    record Result(Path path, CompiledScript script,
+            List<ErrorList.Error> errors) {
+
+    }
+
+    private final ForkJoinPool pool;
+
+    ParallelCompiler() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    ParallelCompiler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Compiles every file, returning the results in the same order.
+     */
+    List<Result> compile(List<Path> paths) throws IOException {
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (Path path : paths) {
+            tasks.add(() -> compile(path));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return results;
+    }
+
+    private Result compile(Path path) throws IOException {
+        ErrorList errors = new ErrorList();
+        CompiledScript script = Lox.compileFile(path, errors);
+        return new Result(path, script, errors.errors());
+    }
+}
@@ -9,7 +9,10 @@ import java.io.IOException;
 
 class Parser {
 
-    private final Scanner scanner;
+    private final TokenSource tokens;
+    // Where a lazy parser keeps the bodies it skips; null if it isn't one.
+    private final LazyBody.Pending pending;
+    private final ErrorReporter errors;
 
     private Token currentToken;
     private Token previousToken;
@@ -17,21 +20,55 @@ class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    Parser(Scanner scanner) throws IOException {
-        this.scanner = scanner;
-        this.currentToken = scanner.getNextToken();
+    /**
+     * Given {@code pending}, the parser is lazy: it only checks that
+     * function bodies have balanced braces and keeps their tokens in a
+     * {@link LazyBody} to be parsed on the first call.
+     */
+    Parser(TokenSource tokens, LazyBody.Pending pending, ErrorReporter errors)
+            throws IOException {
+        this.tokens = tokens;
+        this.pending = pending;
+        this.errors = errors;
+        this.currentToken = tokens.getNextToken();
         this.previousToken = null;
     }
 
     List<Stmt> parse() throws IOException {
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.add(declaration());
+        while (hasNext()) {
+            statements.add(next());
         }
 
         return statements;
     }
 
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    /**
+     * Parses a single top-level declaration. Returns null if it had a
+     * syntax error, after skipping to the start of the next one.
+     */
+    Stmt next() throws IOException {
+        return declaration();
+    }
+
+    /**
+     * Parses the tokens of a {@link LazyBody}, which start after the
+     * opening brace and include the closing one. Returns null if there was
+     * a syntax error.
+     */
+    List<Stmt> parseBody() throws IOException {
+        try {
+            return block();
+        }
+        catch (ParseError error) {
+            return null;
+        }
+    }
+
     private Expr expression() throws IOException {
         return assignment();
     }
@@ -101,6 +138,7 @@ class Parser {
     }
 
     private Stmt forStatement() throws IOException {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -135,7 +173,7 @@ class Parser {
         if (condition == null) {
             condition = new Expr.Literal(true);
         }
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -188,12 +226,13 @@ class Parser {
     }
 
     private Stmt whileStatement() throws IOException {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt expressionStatement() throws IOException {
@@ -219,10 +258,29 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        List<Stmt> body = pending != null
+                ? skipBody(name, parameters) : block();
         return new Stmt.Function(name, parameters, body);
     }
 
+    private LazyBody skipBody(Token name, List<Token> parameters)
+            throws IOException {
+        List<Token> body = new ArrayList<>();
+        int depth = 1;
+        while (!isAtEnd()) {
+            Token token = advance();
+            body.add(token);
+            if (token.type() == LEFT_BRACE) {
+                depth++;
+            } else if (token.type() == RIGHT_BRACE && --depth == 0) {
+                body.add(new Token(EOF, "", null, token.line()));
+                return new LazyBody(pending, name, parameters, body);
+            }
+        }
+
+        throw error(peek(), "Expect '}' after block.");
+    }
+
     private List<Stmt> block() throws IOException {
         List<Stmt> statements = new ArrayList<>();
 
@@ -441,7 +499,7 @@ class Parser {
     private Token advance() throws IOException {
         if (!isAtEnd()) {
             previousToken = currentToken;
-            currentToken = scanner.getNextToken();
+            currentToken = tokens.getNextToken();
         }
         
         return previous();
@@ -460,7 +518,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 
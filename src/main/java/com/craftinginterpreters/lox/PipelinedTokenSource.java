@@ -0,0 +1,163 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Runs a scanner on its own thread so that decoding and lexing
+ * overlap with parsing. Tokens are handed over through a bounded
+ * single-producer, single-consumer ring buffer that needs no locks: the
+ * scanner thread only ever advances the tail and the parser only ever
+ * advances the head.
+ *
+ * Scanner errors travel through the buffer along with the tokens and are
+ * reported on the parser's thread when it reaches them, so they come out
+ * in the same order and on the same reporter as without pipelining.
+ */
+class PipelinedTokenSource implements TokenSource, AutoCloseable {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    // Holds Tokens, ErrorList.Errors and, if the scanner failed, the
+    // exception. A power of two in size so that a sequence number can be
+    // masked into an index.
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final ErrorReporter errors;
+    private final Thread scanner;
+    private volatile boolean closed = false;
+
+    // Only touched by the parser thread.
+    private long nextHead = 0;
+    private long cachedTail = 0;
+
+    /**
+     * Calls {@code scanner} on the scanner thread to create the scanner,
+     * passing it the reporter it must use for its errors.
+     */
+    PipelinedTokenSource(Function<ErrorReporter, TokenSource> scanner,
+            ErrorReporter errors) {
+        this(scanner, errors, DEFAULT_CAPACITY);
+    }
+
+    PipelinedTokenSource(Function<ErrorReporter, TokenSource> scanner,
+            ErrorReporter errors, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of two.");
+        }
+        this.buffer = new Object[capacity];
+        this.mask = capacity - 1;
+        this.errors = errors;
+        this.scanner = new Thread(() -> scan(scanner), "lox-scanner");
+        this.scanner.setDaemon(true);
+        this.scanner.start();
+    }
+
+    @Override
+    public Token getNextToken() throws IOException {
+        for (;;) {
+            Object item = take();
+            if (item instanceof Token token) {
+                return token;
+            } else if (item instanceof ErrorList.Error error) {
+                errors.report(error.line(), error.where(), error.message());
+            } else if (item instanceof IOException error) {
+                throw error;
+            } else {
+                throw (RuntimeException) item;
+            }
+        }
+    }
+
+    /**
+     * Stops the scanner thread if the parser gave up before the end.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(scanner);
+    }
+
+    private void scan(Function<ErrorReporter, TokenSource> factory) {
+        ErrorReporter queued = new ErrorReporter() {
+
+            // Only touched by the scanner thread.
+            private boolean failed = false;
+
+            @Override
+            public void report(int line, String where, String message) {
+                failed = true;
+                put(new ErrorList.Error(line, where, message));
+            }
+
+            @Override
+            public boolean hadError() {
+                return failed;
+            }
+        };
+
+        try {
+            TokenSource scanner = factory.apply(queued);
+            Token token;
+            do {
+                token = scanner.getNextToken();
+                put(token);
+            } while (token.type() != TokenType.EOF && !closed);
+        }
+        catch (IOException | RuntimeException error) {
+            put(error);
+        }
+    }
+
+    // Called only on the scanner thread.
+    private void put(Object item) {
+        long sequence = tail.get();
+        int idle = 0;
+        while (sequence - head.get() == buffer.length) {
+            if (closed) {
+                return;
+            }
+            idle = backOff(idle);
+        }
+
+        buffer[(int) sequence & mask] = item;
+        // Publish the slot. lazySet() is a release store, which is all the
+        // parser needs to see the item written above.
+        tail.lazySet(sequence + 1);
+    }
+
+    // Called only on the parser thread.
+    private Object take() {
+        int idle = 0;
+        while (nextHead == cachedTail) {
+            cachedTail = tail.get();
+            if (nextHead == cachedTail) {
+                idle = backOff(idle);
+            }
+        }
+
+        int index = (int) nextHead & mask;
+        Object item = buffer[index];
+        buffer[index] = null;
+        head.lazySet(++nextHead);
+        return item;
+    }
+
+    // Spins briefly, since the other side is usually just about to catch
+    // up, then yields and finally sleeps so as not to burn a core.
+    private static int backOff(int idle) {
+        if (idle < 64) {
+            Thread.onSpinWait();
+        } else if (idle < 128) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idle + 1;
+    }
+}
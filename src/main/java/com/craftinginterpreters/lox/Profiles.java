@@ -0,0 +1,162 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the {@link TypeProfile}s in a syntax tree. Bodies of lazily parsed
+ * functions that never ran are skipped, since they have nothing to show.
+ * Embedders read a script's type feedback through {@link #of}.
+ */
+public final class Profiles {
+
+    /**
+     * A snapshot of one profiled node: how often it ran and the type each
+     * of its operands has had, as {@link TypeProfile} describes them.
+     * {@code node} is the operator, the property name or "call".
+     */
+    public record Entry(Kind kind, int line, String node, long executions,
+            List<String> operands) {
+
+        @Override
+        public String toString() {
+            return "[line " + line + "] " + node + ": "
+                    + String.join(", ", operands) + " (" + executions + "x)";
+        }
+    }
+
+    public enum Kind {
+        BINARY,
+        UNARY,
+        GET,
+        CALL
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private Profiles() {
+    }
+
+    /**
+     * The type feedback gathered so far by the runs of {@code script}, one
+     * entry per operator, property access and call, in source order. The
+     * entries are copies, so reading them never changes what the
+     * optimizer sees.
+     */
+    public static List<Entry> of(CompiledScript script) {
+        return collect(script.statements());
+    }
+
+    static List<Entry> collect(List<Stmt> statements) {
+        Profiles profiles = new Profiles();
+        profiles.stmts(statements);
+        return List.copyOf(profiles.entries);
+    }
+
+    /**
+     * Prints the profile of every node that ran, in source order.
+     */
+    static void dump(List<Stmt> statements, PrintStream out) {
+        for (Entry entry : collect(statements)) {
+            if (entry.executions() > 0) {
+                out.println(entry);
+            }
+        }
+    }
+
+    private void add(Kind kind, Token token, TypeProfile profile) {
+        String node = switch (kind) {
+            case CALL -> "call";
+            case GET -> "'." + token.lexeme() + "'";
+            case BINARY, UNARY -> "'" + token.lexeme() + "'";
+        };
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < profile.operands(); i++) {
+            operands.add(profile.describe(i));
+        }
+        entries.add(new Entry(kind, token.line(), node, profile.executions(),
+                List.copyOf(operands)));
+    }
+
+    private void stmts(List<? extends Stmt> statements) {
+        if (statements instanceof LazyBody body && !body.isLoaded()) {
+            return;
+        }
+        statements.forEach(this::stmt);
+    }
+
+    private void stmt(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Block s -> stmts(s.statements());
+            case Stmt.Class s -> stmts(s.methods());
+            case Stmt.Expression s -> expr(s.expression());
+            case Stmt.Function s -> stmts(s.body());
+            case Stmt.If s -> {
+                expr(s.condition());
+                stmt(s.thenBranch());
+                if (s.elseBranch() != null) {
+                    stmt(s.elseBranch());
+                }
+            }
+            case Stmt.Optimized s -> stmt(s.original());
+            case Stmt.Print s -> expr(s.expression());
+            case Stmt.Return s -> {
+                if (s.value() != null) {
+                    expr(s.value());
+                }
+            }
+            case Stmt.Var s -> {
+                if (s.initializer() != null) {
+                    expr(s.initializer());
+                }
+            }
+            case Stmt.While s -> {
+                expr(s.condition());
+                stmt(s.body());
+            }
+        }
+    }
+
+    private void expr(Expr expr) {
+        switch (expr) {
+            case Expr.Assign e -> expr(e.value());
+            case Expr.Binary e -> {
+                expr(e.left());
+                add(Kind.BINARY, e.operator(), e.profile());
+                expr(e.right());
+            }
+            case Expr.Call e -> {
+                expr(e.callee());
+                add(Kind.CALL, e.paren(), e.profile());
+                e.arguments().forEach(this::expr);
+            }
+            case Expr.Get e -> {
+                expr(e.object());
+                add(Kind.GET, e.name(), e.profile());
+            }
+            case Expr.Grouping e -> expr(e.expression());
+            case Expr.Literal e -> {
+            }
+            case Expr.Logical e -> {
+                expr(e.left());
+                expr(e.right());
+            }
+            case Expr.Optimized e -> expr(e.original());
+            case Expr.Set e -> {
+                expr(e.object());
+                expr(e.value());
+            }
+            case Expr.Super e -> {
+            }
+            case Expr.This e -> {
+            }
+            case Expr.Unary e -> {
+                add(Kind.UNARY, e.operator(), e.profile());
+                expr(e.right());
+            }
+            case Expr.Variable e -> {
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How much calling a function depends on and changes the state around it.
+ * A pure function's result depends only on its arguments and on constants,
+ * and calling it changes nothing outside its own locals. One that reads
+ * fields is the same, except that its result also depends on any field it
+ * reads. Anything else is impure.
+ *
+ * Only top-level functions are analyzed, since those are the ones a call
+ * can be matched with before running. Calling one may still fail, or never
+ * return, like any other.
+ */
+enum Purity {
+    PURE, READS_FIELDS, IMPURE;
+
+    Purity and(Purity other) {
+        return compareTo(other) >= 0 ? this : other;
+    }
+
+    /**
+     * The top-level functions of a script worth analyzing: those declared
+     * once, not parsed lazily and whose name isn't in {@code assigned}.
+     */
+    static Map<String, Stmt.Function> candidates(List<Stmt> statements,
+            Set<String> assigned) {
+        Map<String, Stmt.Function> functions = new HashMap<>();
+        Map<String, Integer> declarations = new HashMap<>();
+        for (Stmt stmt : statements) {
+            Token name = switch (stmt) {
+                case Stmt.Class s -> s.name();
+                case Stmt.Function s -> s.name();
+                case Stmt.Var s -> s.name();
+                default -> null;
+            };
+            if (name == null) {
+                continue;
+            }
+            declarations.merge(name.lexeme(), 1, Integer::sum);
+
+            if (stmt instanceof Stmt.Function function
+                    && !(function.body() instanceof LazyBody)) {
+                functions.put(name.lexeme(), function);
+            }
+        }
+
+        functions.keySet().removeIf(name -> declarations.get(name) > 1
+                || assigned.contains(name));
+        return functions;
+    }
+
+    /** Every name assigned to anywhere in {@code statements}. */
+    static Set<String> assignedNames(List<Stmt> statements) {
+        Set<String> names = new HashSet<>();
+        statements.forEach(stmt -> assignedNames(stmt, names));
+        return names;
+    }
+
+    private static void assignedNames(Stmt stmt, Set<String> names) {
+        if (stmt == null) {
+            return;
+        }
+
+        switch (stmt) {
+            case Stmt.Block s ->
+                s.statements().forEach(inner -> assignedNames(inner, names));
+            case Stmt.Class s ->
+                s.methods().forEach(method -> assignedNames(method, names));
+            case Stmt.Expression s -> assignedNames(s.expression(), names);
+            case Stmt.Function s -> {
+                if (s.body() instanceof LazyBody body && !body.isLoaded()) {
+                    names.addAll(body.assignedNames());
+                } else {
+                    s.body().forEach(inner -> assignedNames(inner, names));
+                }
+            }
+            case Stmt.If s -> {
+                assignedNames(s.condition(), names);
+                assignedNames(s.thenBranch(), names);
+                assignedNames(s.elseBranch(), names);
+            }
+            case Stmt.Optimized s -> assignedNames(s.original(), names);
+            case Stmt.Print s -> assignedNames(s.expression(), names);
+            case Stmt.Return s -> assignedNames(s.value(), names);
+            case Stmt.Var s -> assignedNames(s.initializer(), names);
+            case Stmt.While s -> {
+                assignedNames(s.condition(), names);
+                assignedNames(s.body(), names);
+            }
+        }
+    }
+
+    private static void assignedNames(Expr expr, Set<String> names) {
+        if (expr == null) {
+            return;
+        }
+
+        switch (expr) {
+            case Expr.Assign e -> {
+                names.add(e.name().lexeme());
+                assignedNames(e.value(), names);
+            }
+            case Expr.Binary e -> {
+                assignedNames(e.left(), names);
+                assignedNames(e.right(), names);
+            }
+            case Expr.Call e -> {
+                assignedNames(e.callee(), names);
+                e.arguments().forEach(argument -> assignedNames(argument, names));
+            }
+            case Expr.Get e -> assignedNames(e.object(), names);
+            case Expr.Grouping e -> assignedNames(e.expression(), names);
+            case Expr.Logical e -> {
+                assignedNames(e.left(), names);
+                assignedNames(e.right(), names);
+            }
+            case Expr.Optimized e -> assignedNames(e.original(), names);
+            case Expr.Set e -> {
+                assignedNames(e.object(), names);
+                assignedNames(e.value(), names);
+            }
+            case Expr.Unary e -> assignedNames(e.right(), names);
+            case Expr.Literal e -> {
+            }
+            case Expr.Super e -> {
+            }
+            case Expr.This e -> {
+            }
+            case Expr.Variable e -> {
+            }
+        }
+    }
+
+    /**
+     * The purity of each of {@code functions} that isn't impure. Globals in
+     * {@code constants} are never assigned, so reading them is pure.
+     */
+    static Map<String, Purity> of(Map<String, Stmt.Function> functions,
+            Set<String> constants, Map<Expr, Environment.Slot> locals) {
+        // Start by assuming they are all pure, which is what lets recursive
+        // functions be, and give up on that wherever it's proven wrong.
+        Map<String, Purity> purity = new HashMap<>();
+        functions.keySet().forEach(name -> purity.put(name, PURE));
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Stmt.Function> entry
+                    : functions.entrySet()) {
+                Analysis analysis = new Analysis(purity, constants, locals);
+                Purity found = analysis.function(entry.getValue());
+                if (found != purity.get(entry.getKey())) {
+                    purity.put(entry.getKey(), found);
+                    changed = true;
+                }
+            }
+        }
+
+        purity.values().removeIf(found -> found == IMPURE);
+        return purity;
+    }
+
+    private static final class Analysis {
+
+        private final Map<String, Purity> purity;
+        private final Set<String> constants;
+        private final Map<Expr, Environment.Slot> locals;
+        // How many scopes deep into the function the code being looked at
+        // is. Variables resolved to fewer scopes out than that are its own.
+        private int depth = 0;
+
+        Analysis(Map<String, Purity> purity, Set<String> constants,
+                Map<Expr, Environment.Slot> locals) {
+            this.purity = purity;
+            this.constants = constants;
+            this.locals = locals;
+        }
+
+        Purity function(Stmt.Function function) {
+            depth = 1;
+            return statements(function.body());
+        }
+
+        private Purity statements(List<Stmt> statements) {
+            Purity result = PURE;
+            for (Stmt stmt : statements) {
+                result = result.and(stmt(stmt));
+            }
+            return result;
+        }
+
+        private Purity stmt(Stmt stmt) {
+            if (stmt == null) {
+                return PURE;
+            }
+
+            return switch (stmt) {
+                case Stmt.Block s -> {
+                    depth++;
+                    Purity result = statements(s.statements());
+                    depth--;
+                    yield result;
+                }
+                case Stmt.Expression s -> expr(s.expression());
+                case Stmt.If s -> expr(s.condition())
+                        .and(stmt(s.thenBranch())).and(stmt(s.elseBranch()));
+                case Stmt.Optimized s -> stmt(s.original());
+                case Stmt.Return s -> expr(s.value());
+                case Stmt.Var s -> expr(s.initializer());
+                case Stmt.While s -> expr(s.condition()).and(stmt(s.body()));
+                // Closures and classes could be called from anywhere.
+                case Stmt.Class s -> IMPURE;
+                case Stmt.Function s -> IMPURE;
+                case Stmt.Print s -> IMPURE;
+            };
+        }
+
+        private Purity expr(Expr expr) {
+            if (expr == null) {
+                return PURE;
+            }
+
+            return switch (expr) {
+                case Expr.Assign e -> isOwn(e)
+                        ? expr(e.value()) : IMPURE;
+                case Expr.Binary e -> expr(e.left()).and(expr(e.right()));
+                case Expr.Call e -> {
+                    Purity result = callee(e.callee());
+                    for (Expr argument : e.arguments()) {
+                        result = result.and(expr(argument));
+                    }
+                    yield result;
+                }
+                case Expr.Get e -> READS_FIELDS.and(expr(e.object()));
+                case Expr.Grouping e -> expr(e.expression());
+                case Expr.Literal e -> PURE;
+                case Expr.Logical e -> expr(e.left()).and(expr(e.right()));
+                case Expr.Optimized e -> expr(e.original());
+                case Expr.Unary e -> expr(e.right());
+                case Expr.Variable e -> isOwn(e)
+                        || constants.contains(e.name().lexeme())
+                        || purity.containsKey(e.name().lexeme())
+                        ? PURE : IMPURE;
+                case Expr.Set e -> IMPURE;
+                case Expr.Super e -> IMPURE;
+                case Expr.This e -> IMPURE;
+            };
+        }
+
+        private Purity callee(Expr callee) {
+            if (callee instanceof Expr.Variable variable
+                    && locals.get(variable) == null) {
+                return purity.getOrDefault(variable.name().lexeme(), IMPURE);
+            }
+            return IMPURE;
+        }
+
+        private boolean isOwn(Expr variable) {
+            Environment.Slot slot = locals.get(variable);
+            return slot != null && slot.depth() < depth;
+        }
+    }
+}
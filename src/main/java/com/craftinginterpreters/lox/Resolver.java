@@ -1,38 +1,110 @@
 package com.craftinginterpreters.lox;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Map<Expr, Environment.Slot> locals;
+    private final ErrorReporter errors;
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    // The top-level names declared so far, and the global variables and
+    // names among them that are assigned or declared more than once.
+    private final Map<String, Stmt.Var> globalVars = new HashMap<>();
+    private final Set<String> globalNames = new HashSet<>();
+    private final Set<String> assignedGlobals = new HashSet<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(Map<Expr, Environment.Slot> locals) {
+        this(locals, Lox.errors);
     }
 
-    private enum FunctionType {
+    Resolver(Map<Expr, Environment.Slot> locals, ErrorReporter errors) {
+        this.locals = locals;
+        this.errors = errors;
+    }
+
+    enum FunctionType {
         NONE,
         FUNCTION,
         INITIALIZER,
         METHOD
     }
 
-    private enum ClassType {
+    enum ClassType {
         NONE,
         CLASS,
         SUBCLASS
     }
 
+    /**
+     * A variable declared in a scope. Slots are handed out in declaration
+     * order, which is the order the interpreter defines them in.
+     * {@code declaration} is only set for variables declared with var.
+     */
+    record Local(int slot, boolean defined, Stmt.Var declaration,
+            boolean assigned) {
+
+    }
+
+    /**
+     * What the resolver found out about a var declaration. A variable is
+     * constant if nothing assigns to it after its initializer. For a local
+     * that is settled when its scope ends; for a global, when the whole
+     * script has been resolved, and only as far as that script goes.
+     */
+    static final class Binding {
+
+        private boolean constant = false;
+
+        boolean isConstant() {
+            return constant;
+        }
+
+        void markConstant() {
+            constant = true;
+        }
+    }
+
     private ClassType currentClass = ClassType.NONE;
 
+    /**
+     * What the resolver knew where a {@link LazyBody} was declared, so
+     * that the body can be resolved on its first call exactly as it would
+     * have been in place.
+     */
+    record Context(List<Map<String, Local>> scopes,
+            FunctionType function, ClassType currentClass) {
+
+    }
+
     void resolve(List<Stmt> statements) {
         statements.forEach(this::resolve);
+
+        if (scopes.isEmpty()) {
+            globalVars.forEach((name, declaration) -> {
+                if (!assignedGlobals.contains(name)) {
+                    declaration.binding().markConstant();
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolves a lazily parsed function body in the context it was
+     * declared in.
+     */
+    void resolveBody(Context context, List<Token> params, List<Stmt> body) {
+        for (Map<String, Local> scope : context.scopes()) {
+            scopes.push(new HashMap<>(scope));
+        }
+        currentClass = context.currentClass();
+        currentFunction = context.function();
+        resolveFunctionBody(params, body);
     }
 
     interface StmtResolver<T extends Stmt> {
@@ -72,7 +144,7 @@ public class Resolver {
 
         if (stmt.superclass() != null
                 && stmt.name().lexeme().equals(stmt.superclass().name().lexeme())) {
-            Lox.error(stmt.superclass().name(),
+            errors.error(stmt.superclass().name(),
                     "A class can't inherit from itself.");
         }
 
@@ -83,11 +155,11 @@ public class Resolver {
 
         if (stmt.superclass() != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            scopes.peek().put("super", new Local(0, true, null, false));
         }
 
         beginScope();
-        scopes.peek().put("this", true);
+        scopes.peek().put("this", new Local(0, true, null, false));
 
         for (Stmt.Function method : stmt.methods()) {
             FunctionType declaration = FunctionType.METHOD;
@@ -142,12 +214,12 @@ public class Resolver {
     
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword(), "Can't return from top-level code.");
+            errors.error(stmt.keyword(), "Can't return from top-level code.");
         }
 
         if (stmt.value() != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword(),
+                errors.error(stmt.keyword(),
                         "Can't return a value from an initializer.");
             }
 
@@ -159,7 +231,7 @@ public class Resolver {
 
     
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name());
+        declare(stmt.name(), stmt);
         if (stmt.initializer() != null) {
             resolve(stmt.initializer());
         }
@@ -178,6 +250,7 @@ public class Resolver {
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value());
         resolveLocal(expr, expr.name());
+        markAssigned(expr.name().lexeme());
         return null;
     }
 
@@ -231,10 +304,10 @@ public class Resolver {
     
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword(),
+            errors.error(expr.keyword(),
                     "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword(),
+            errors.error(expr.keyword(),
                     "Can't use 'super' in a class with no superclass.");
         }
 
@@ -245,7 +318,7 @@ public class Resolver {
     
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword(),
+            errors.error(expr.keyword(),
                     "Can't use 'this' outside of a class.");
             return null;
         }
@@ -262,8 +335,11 @@ public class Resolver {
 
     
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && Objects.equals(scopes.peek().get(expr.name().lexeme()), Boolean.FALSE)) {
-            Lox.error(expr.name(), "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().get(expr.name().lexeme());
+            if (local != null && !local.defined()) {
+                errors.error(expr.name(), "Can't read local variable in its own initializer.");
+            }
         }
 
         resolveLocal(expr, expr.name());
@@ -277,6 +353,7 @@ public class Resolver {
             case Stmt.Expression s -> visitExpressionStmt(s);
             case Stmt.Function s -> visitFunctionStmt(s);
             case Stmt.If s -> visitIfStmt(s);
+            case Stmt.Optimized s -> resolve(s.original());
             case Stmt.Print s -> visitPrintStmt(s);
             case Stmt.Return s -> visitReturnStmt(s);
             case Stmt.Var s -> visitVarStmt(s);
@@ -293,6 +370,7 @@ public class Resolver {
             case Expr.Grouping e -> visitGroupingExpr(e);
             case Expr.Literal e -> visitLiteralExpr(e);
             case Expr.Logical e -> visitLogicalExpr(e);
+            case Expr.Optimized e -> resolve(e.original());
             case Expr.Set e -> visitSetExpr(e);
             case Expr.Super e -> visitSuperExpr(e);
             case Expr.This e -> visitThisExpr(e);
@@ -303,17 +381,33 @@ public class Resolver {
 
     private void resolveFunction(
             Stmt.Function function, FunctionType type) {
+        if (function.body() instanceof LazyBody body) {
+            // Copy the scopes, since they change as resolution goes on.
+            List<Map<String, Local>> snapshot = scopes.stream()
+                    .map(scope -> (Map<String, Local>) new HashMap<>(scope))
+                    .toList();
+            body.defer(new Context(snapshot, type, currentClass));
+
+            // The body is resolved too late to tell which variables it
+            // assigns, so assume it assigns every one it might.
+            body.assignedNames().forEach(this::markAssigned);
+            return;
+        }
+
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        resolveFunctionBody(function.params(), function.body());
+        currentFunction = enclosingFunction;
+    }
 
+    private void resolveFunctionBody(List<Token> params, List<Stmt> body) {
         beginScope();
-        for (Token param : function.params()) {
+        for (Token param : params) {
             declare(param);
             define(param);
         }
-        resolve(function.body());
+        resolve(body);
         endScope();
-        currentFunction = enclosingFunction;
     }
 
     private void beginScope() {
@@ -321,34 +415,67 @@ public class Resolver {
     }
 
     private void endScope() {
-        scopes.pop();
+        for (Local local : scopes.pop().values()) {
+            if (local.declaration() != null && !local.assigned()) {
+                local.declaration().binding().markConstant();
+            }
+        }
     }
 
     private void declare(Token name) {
+        declare(name, null);
+    }
+
+    private void declare(Token name, Stmt.Var declaration) {
         if (scopes.isEmpty()) {
+            if (!globalNames.add(name.lexeme())) {
+                assignedGlobals.add(name.lexeme());
+            }
+            if (declaration != null) {
+                globalVars.put(name.lexeme(), declaration);
+            }
             return;
         }
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek();
         if (scope.containsKey(name.lexeme())) {
-            Lox.error(name,
+            errors.error(name,
                     "Already a variable with this name in this scope.");
+            return;
         }
 
-        scope.put(name.lexeme(), false);
+        scope.put(name.lexeme(),
+                new Local(scope.size(), false, declaration, false));
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) {
             return;
         }
-        scopes.peek().put(name.lexeme(), true);
+        scopes.peek().computeIfPresent(name.lexeme(),
+                (key, local) -> new Local(local.slot(), true,
+                        local.declaration(), local.assigned()));
+    }
+
+    // Records an assignment to the variable a name refers to here.
+    private void markAssigned(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name);
+            if (local != null) {
+                scopes.get(i).put(name, new Local(local.slot(),
+                        local.defined(), local.declaration(), true));
+                return;
+            }
+        }
+        assignedGlobals.add(name);
     }
 
     private void resolveLocal(Expr expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme())) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            Local local = scopes.get(i).get(name.lexeme());
+            if (local != null) {
+                locals.put(expr, new Environment.Slot(
+                        scopes.size() - 1 - i, local.slot()));
                 return;
             }
         }
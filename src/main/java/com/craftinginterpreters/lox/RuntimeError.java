@@ -8,4 +8,9 @@ class RuntimeError extends RuntimeException {
         super(message);
         this.token = token;
     }
+
+    /** The error the way the command line prints it. */
+    String describe() {
+        return getMessage() + "\n[line " + token.line() + "]";
+    }
 }
@@ -4,18 +4,18 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.LineNumberReader;
 import java.io.PushbackReader;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
-public class Scanner {
+public class Scanner implements TokenSource {
 
     private static final int LOOKAHEAD = 2;
-    private static final Map<String, TokenType> keywords = new HashMap<String, TokenType>() {
+    static final Map<String, TokenType> keywords = new HashMap<String, TokenType>() {
         {
 
             put("and", AND);
@@ -37,16 +37,22 @@ public class Scanner {
         }
     };
 
-    private final LineNumberReader lineNumberReader;
     private final PushbackReader source;
+    private int line = 1;
     private final StringBuilder lexemeBuilder = new StringBuilder();
+    private final ErrorReporter errors;
 
     Scanner(InputStream source) {
-        this.lineNumberReader = new LineNumberReader(new InputStreamReader(source, StandardCharsets.UTF_8));
-        this.lineNumberReader.setLineNumber(1);
-        this.source = new PushbackReader(lineNumberReader, LOOKAHEAD);
+        this(source, Lox.errors);
+    }
+
+    Scanner(InputStream source, ErrorReporter errors) {
+        this.errors = errors;
+        this.source = new PushbackReader(new BufferedReader(
+                new InputStreamReader(source, StandardCharsets.UTF_8)), LOOKAHEAD);
     }    
     
+    @Override
     public Token getNextToken() throws IOException {
         Optional<Token> token = scanToken();
         if (!token.isEmpty()) {
@@ -101,7 +107,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     yield identifier();
                 } else {
-                    Lox.error(getLineNumber(), "Unexpected character.");
+                    errors.error(getLineNumber(), "Unexpected character.");
                     yield Optional.empty();
                 }
             }
@@ -139,16 +145,12 @@ public class Scanner {
     }
 
     private Optional<Token> string() throws IOException {
-        
-        // The opening ".
-        advance();
-
         while (peek() != '"' && !isAtEnd()) {
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(getLineNumber(), "Unterminated string.");
+            errors.error(getLineNumber(), "Unterminated string.");
             return Optional.empty();
         }
 
@@ -171,6 +173,7 @@ public class Scanner {
             return false;
         }
 
+        lexemeBuilder.append((char) c);
         return true;
     }
 
@@ -222,6 +225,9 @@ public class Scanner {
 
     private char advance() throws IOException {
         char c = (char) source.read();
+        if (c == '\n') {
+            line++;
+        }
         lexemeBuilder.append(c);
         return c;
     }
@@ -236,7 +242,10 @@ public class Scanner {
     }
 
 
+    // Counting lines as characters are consumed, rather than as they are
+    // read, keeps a peek past the end of a line from moving a token onto
+    // the next one.
     private int getLineNumber() {
-        return lineNumberReader.getLineNumber();
+        return line;
     }
 }
@@ -0,0 +1,221 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * The tasks started by spawn() on an interpreter, and the lock that lets
+ * them share it. Each task runs on a thread of its own, but only the one
+ * holding the lock runs Lox code, so environments, instances and the
+ * resolution data need no synchronization of their own. A task lets go of
+ * the lock while it waits on a {@link Channel}, which is where the waiting
+ * of several tasks overlaps. It also lets go at a safepoint once it has
+ * had the lock for a quantum and another task is waiting for it, and the
+ * lock being fair, it then waits its turn behind that task, so a task
+ * that never waits can't starve the others. The threads of a parallel operation run
+ * under their caller's hold on the lock, so they can't use tasks or
+ * channels.
+ *
+ * Threads waiting on channels are counted, so that when every task that
+ * could still run is waiting, they all fail with a deadlock error instead
+ * of hanging. The thread that made the interpreter counts as a task until
+ * it calls {@link #finish()}.
+ */
+final class Scheduler {
+
+    /** How many safepoint polls there are between safepoints. */
+    static final int TICKS = 1 << 10;
+
+    // How long a task may keep the lock from one waiting for it, and a
+    // script in a ScriptPool its worker from one waiting for it.
+    static final long QUANTUM_NANOS = 10_000_000;
+
+    private static final ExecutorService threads
+            = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "lox-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final long id = ids.incrementAndGet();
+    private final ReentrantLock lock = new ReentrantLock(true);
+    // Signalled whenever a channel or the number of tasks changes.
+    private final Condition changed = lock.newCondition();
+    // Valid until a second task could run code that a loop's hoisted
+    // values depend on.
+    private final Assumption alone = new Assumption("no task is spawned");
+
+    // The rest is guarded by the lock. Tasks that are running or could
+    // run once they have the lock, counting the interpreter's own thread.
+    private int live = 1;
+    // Tasks that found they couldn't go on since the last change.
+    private int blocked = 0;
+    // Tasks waiting on a channel at all, and how many changes there have
+    // been, to tell a signal from a spurious wakeup.
+    private int waiting = 0;
+    private long changes = 0;
+    private boolean deadlocked = false;
+    // When the task holding the lock got it.
+    private long slice = 0;
+    // Where the runtime errors that end a script or task go.
+    private Consumer<RuntimeError> reporter = Lox::runtimeError;
+    // The script's turn on a ScriptPool's worker, if it runs on one. Set
+    // before the script starts.
+    private ScriptPool.Turn turn = null;
+
+    /** Takes the lock, to run Lox code on the calling thread. */
+    void enter() {
+        lock.lock();
+        slice = System.nanoTime();
+    }
+
+    void exit() {
+        lock.unlock();
+    }
+
+    /**
+     * Sends the runtime errors that end scripts and tasks from now on to
+     * {@code reporter}, and returns where they went before.
+     */
+    Consumer<RuntimeError> reportTo(Consumer<RuntimeError> reporter) {
+        lock.lock();
+        try {
+            Consumer<RuntimeError> previous = this.reporter;
+            this.reporter = reporter;
+            return previous;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Reports an error that ended a script or task; holds the lock. */
+    void report(RuntimeError error) {
+        reporter.accept(error);
+    }
+
+    /** Calls {@code function} on a new task, forked from {@code parent}. */
+    void spawn(Interpreter parent, LoxCallable function) {
+        alone.invalidate();
+        live++;
+        threads.execute(() -> {
+            enter();
+            try {
+                function.call0(parent.fork());
+            }
+            catch (RuntimeError error) {
+                report(error);
+            }
+            finally {
+                live--;
+                signal();
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Waits, without the lock, until {@code ready} is true. Throws if that
+     * can never happen because every task is waiting.
+     */
+    void await(BooleanSupplier ready) {
+        waiting++;
+        try {
+            while (!ready.getAsBoolean()) {
+                if (!deadlocked && ++blocked == live) {
+                    deadlocked = true;
+                    changed.signalAll();
+                }
+                if (deadlocked) {
+                    throw new NativeError(
+                            "Deadlock: every task is waiting on a channel.");
+                }
+
+                long seen = changes;
+                changed.awaitUninterruptibly();
+                slice = System.nanoTime();
+                if (changes == seen) {
+                    blocked--; // Woken for nothing; still blocked.
+                }
+            }
+        }
+        finally {
+            if (--waiting == 0) {
+                deadlocked = false;
+            }
+        }
+    }
+
+    /** Makes the script take turns with others on {@code turn}'s pool. */
+    void runOn(ScriptPool.Turn turn) {
+        this.turn = turn;
+    }
+
+    /**
+     * Lets another task have the lock if the calling one has had it for a
+     * quantum, and another script the worker if the script has had that
+     * for one. Does nothing on a thread that doesn't hold the lock, as in
+     * a parallel operation, or holds it more than once.
+     */
+    void safepoint() {
+        if (lock.getHoldCount() != 1) {
+            return;
+        }
+        if (turn != null) {
+            turn.safepoint();
+        }
+        if (lock.hasQueuedThreads()
+                && System.nanoTime() - slice >= QUANTUM_NANOS) {
+            lock.unlock();
+            enter();
+        }
+    }
+
+    /** Tells this scheduler apart, as {@link Globals#id()} does globals. */
+    long id() {
+        return id;
+    }
+
+    /**
+     * An assumption that only one task runs on the interpreter, which
+     * spawning a task invalidates. Until then nothing but the code running
+     * can change a variable or field.
+     */
+    Assumption alone() {
+        return alone;
+    }
+
+    /** Records a change that may let waiting tasks go on. */
+    void signal() {
+        changes++;
+        blocked = 0;
+        changed.signalAll();
+    }
+
+    /**
+     * Waits for every task to end. The calling thread, which must not
+     * hold the lock, stops counting as a task while it waits, so tasks
+     * that can only go on with its help fail as deadlocked.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            live--;
+            signal();
+            while (live > 0) {
+                changed.awaitUninterruptibly();
+            }
+            live++;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An in-memory cache of compiled scripts for embedders that run the same
+ * sources over and over. Entries are keyed by the SHA-256 hash of the
+ * source, so the same script text hits no matter where it came from.
+ * Least recently used entries are evicted once either the entry count or
+ * the estimated size of the cached trees exceeds its bound.
+ */
+public class ScriptCache {
+
+    // Rough sizes of the objects in a syntax tree on a 64-bit JVM with
+    // compressed references. They only need to be right relative to each
+    // other.
+    private static final long NODE_BYTES = 24;
+    private static final long LIST_BYTES = 40;
+    private static final long REFERENCE_BYTES = 4;
+    private static final long TOKEN_BYTES = 32;
+    private static final long STRING_BYTES = 40;
+    private static final long LOCAL_BYTES = 48;
+
+    /** A snapshot of the cache's counters. */
+    public record Stats(long hits, long misses, long evictions, int entries,
+            long estimatedBytes) {
+
+    }
+
+    private record Entry(Compilation compilation, long size) {
+
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // Guarded by "this". An access-ordered LinkedHashMap iterates from the
+    // least to the most recently used entry.
+    private final LinkedHashMap<String, Entry> entries
+            = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ScriptCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Cache bounds must be positive.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the compiled form of {@code source}, compiling and caching it
+     * on a miss, or the compile errors it has. Scripts with errors are not
+     * cached.
+     */
+    public Compilation get(byte[] source) throws IOException {
+        String key = HexFormat.of().formatHex(AstSerializer.hash(source));
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.compilation();
+            }
+            misses++;
+        }
+
+        // Compile outside the lock so that one large script doesn't stall
+        // every other client. If two threads race on the same source, the
+        // first one to finish wins and the other result is dropped.
+        ErrorList errors = new ErrorList();
+        CompiledScript script = Lox.compile(
+                new ByteArrayInputStream(source), errors);
+        if (script == null) {
+            return new Compilation(null, errors.errors().stream()
+                    .map(ErrorList.Error::toString).toList());
+        }
+
+        Entry entry = new Entry(new Compilation(script, List.of()),
+                estimateSize(script));
+        synchronized (this) {
+            Entry existing = entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                return existing.compilation();
+            }
+
+            bytes += entry.size();
+            evict();
+        }
+        return entry.compilation();
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        // Always keep the entry just added, even if it alone is too big.
+        while (entries.size() > 1
+                && (entries.size() > maxEntries || bytes > maxBytes)) {
+            bytes -= iterator.next().size();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    static long estimateSize(CompiledScript script) {
+        return estimateStmts(script.statements())
+                + script.locals().size() * LOCAL_BYTES;
+    }
+
+    private static long estimateStmts(List<? extends Stmt> stmts) {
+        long size = LIST_BYTES + stmts.size() * REFERENCE_BYTES;
+        for (Stmt stmt : stmts) {
+            size += estimate(stmt);
+        }
+        return size;
+    }
+
+    private static long estimate(Stmt stmt) {
+        if (stmt == null) {
+            return 0;
+        }
+
+        return NODE_BYTES + switch (stmt) {
+            case Stmt.Block s -> estimateStmts(s.statements());
+            case Stmt.Class s -> estimate(s.name())
+                    + estimate(s.superclass()) + estimateStmts(s.methods());
+            case Stmt.Expression s -> estimate(s.expression());
+            case Stmt.Function s -> {
+                long size = estimate(s.name()) + LIST_BYTES;
+                for (Token param : s.params()) {
+                    size += REFERENCE_BYTES + estimate(param);
+                }
+                yield size + estimateStmts(s.body());
+            }
+            case Stmt.If s -> estimate(s.condition())
+                    + estimate(s.thenBranch()) + estimate(s.elseBranch());
+            case Stmt.Optimized s -> estimate(s.original());
+            case Stmt.Print s -> estimate(s.expression());
+            case Stmt.Return s -> estimate(s.keyword()) + estimate(s.value());
+            case Stmt.Var s -> estimate(s.name()) + estimate(s.initializer());
+            case Stmt.While s -> estimate(s.condition()) + estimate(s.body());
+        };
+    }
+
+    private static long estimate(Expr expr) {
+        if (expr == null) {
+            return 0;
+        }
+
+        return NODE_BYTES + switch (expr) {
+            case Expr.Assign e -> estimate(e.name()) + estimate(e.value());
+            case Expr.Binary e -> estimate(e.left()) + estimate(e.operator())
+                    + estimate(e.right());
+            case Expr.Call e -> {
+                long size = estimate(e.callee()) + estimate(e.paren())
+                        + LIST_BYTES;
+                for (Expr argument : e.arguments()) {
+                    size += REFERENCE_BYTES + estimate(argument);
+                }
+                yield size;
+            }
+            case Expr.Get e -> estimate(e.object()) + estimate(e.name());
+            case Expr.Grouping e -> estimate(e.expression());
+            case Expr.Literal e -> e.value() instanceof String
+                    ? estimate((String) e.value()) : 0;
+            case Expr.Logical e -> estimate(e.left()) + estimate(e.operator())
+                    + estimate(e.right());
+            case Expr.Optimized e -> estimate(e.original());
+            case Expr.Set e -> estimate(e.object()) + estimate(e.name())
+                    + estimate(e.value());
+            case Expr.Super e -> estimate(e.keyword()) + estimate(e.method());
+            case Expr.This e -> estimate(e.keyword());
+            case Expr.Unary e -> estimate(e.operator()) + estimate(e.right());
+            case Expr.Variable e -> estimate(e.name());
+        };
+    }
+
+    private static long estimate(Token token) {
+        return TOKEN_BYTES + estimate(token.lexeme());
+    }
+
+    private static long estimate(String string) {
+        return STRING_BYTES + string.length();
+    }
+}
@@ -0,0 +1,105 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs many scripts, each on an interpreter of its own, with at most a
+ * fixed number of them running at once. A script that has run for a
+ * quantum while another is waiting lets that one go at its next
+ * safepoint, and then waits its turn behind every script that was already
+ * waiting, so one that never ends can't keep the others from running.
+ * Each script can also be given fuel, which bounds the CPU it uses in all;
+ * running out ends it with a runtime error, as with --fuel.
+ *
+ * A script that is waiting keeps its thread, parked. The interpreter keeps
+ * a script's state on the Java stack, which can only be put aside along
+ * with the thread. What the pool bounds is how many threads run Lox code
+ * at a time, and so how much of the machine the scripts use between them.
+ */
+public final class ScriptPool implements AutoCloseable {
+
+    /**
+     * A script's turn on a worker, which its {@link Scheduler} gives up
+     * at a safepoint once it has run for a quantum.
+     */
+    final class Turn {
+
+        // When the script last got a worker. Only the task holding the
+        // script's lock touches it.
+        private long start;
+
+        private void begin() {
+            workers.acquireUninterruptibly();
+            start = System.nanoTime();
+        }
+
+        private void end() {
+            workers.release();
+        }
+
+        void safepoint() {
+            if (workers.hasQueuedThreads()
+                    && System.nanoTime() - start >= Scheduler.QUANTUM_NANOS) {
+                end();
+                begin();
+            }
+        }
+    }
+
+    // Fair, so that scripts get a worker in the order they asked for one.
+    private final Semaphore workers;
+    private final ExecutorService threads
+            = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "lox-script");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public ScriptPool(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException(
+                    "A pool needs at least one worker.");
+        }
+        this.workers = new Semaphore(workers, true);
+    }
+
+    /**
+     * Starts running {@code script} on a new interpreter, with
+     * {@code fuel} to spend, or {@code Long.MAX_VALUE} for no limit. The
+     * future completes once the script and the tasks it spawns have ended,
+     * with their runtime errors as {@link Interpreter#run} returns them.
+     */
+    public Future<List<String>> submit(CompiledScript script, long fuel) {
+        if (fuel < 1) {
+            throw new IllegalArgumentException("Fuel must be positive.");
+        }
+
+        return threads.submit(() -> {
+            Interpreter interpreter = new Interpreter();
+            if (fuel != Long.MAX_VALUE) {
+                interpreter.limit(fuel, Long.MAX_VALUE);
+            }
+            Turn turn = new Turn();
+            interpreter.scheduler.runOn(turn);
+            turn.begin();
+            try {
+                return interpreter.run(script);
+            }
+            finally {
+                turn.end();
+            }
+        });
+    }
+
+    /**
+     * Stops taking scripts. Those already submitted still run to the end.
+     */
+    @Override
+    public void close() {
+        threads.shutdown();
+    }
+}
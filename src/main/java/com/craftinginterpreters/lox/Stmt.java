@@ -2,7 +2,7 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-public sealed interface Stmt permits Stmt.Block, Stmt.Class, Stmt.Expression, Stmt.Function, Stmt.If, Stmt.Print, Stmt.Return, Stmt.Var, Stmt.While {
+public sealed interface Stmt permits Stmt.Block, Stmt.Class, Stmt.Expression, Stmt.Function, Stmt.If, Stmt.Optimized, Stmt.Print, Stmt.Return, Stmt.Var, Stmt.While {
 
     public record Block(List<Stmt> statements) implements Stmt {
 
@@ -26,6 +26,14 @@ public sealed interface Stmt permits Stmt.Block, Stmt.Class, Stmt.Expression, St
 
     }
 
+    /**
+     * An optimized statement, which falls back to {@code original} when
+     * its code is no longer valid.
+     */
+    public record Optimized(Stmt original, Optimization.ForStmt code) implements Stmt {
+
+    }
+
     public record Print(Expr expression) implements Stmt {
 
     }
@@ -34,11 +42,14 @@ public sealed interface Stmt permits Stmt.Block, Stmt.Class, Stmt.Expression, St
 
     }
 
-    public record Var(Token name, Expr initializer) implements Stmt {
+    public record Var(Token name, Expr initializer, Resolver.Binding binding) implements Stmt {
 
+        public Var(Token name, Expr initializer) {
+            this(name, initializer, new Resolver.Binding());
+        }
     }
 
-    public record While(Expr condition, Stmt body) implements Stmt {
+    public record While(Token keyword, Expr condition, Stmt body) implements Stmt {
 
     }
 
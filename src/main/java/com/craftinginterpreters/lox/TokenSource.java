@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+
+/**
+ * Where the parser gets its tokens from. Once it has returned an EOF
+ * token, it is not asked for another one.
+ */
+interface TokenSource {
+
+    Token getNextToken() throws IOException;
+}
@@ -0,0 +1,144 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Type feedback for one operator, property access or call. It counts how
+ * often the node ran and, for each operand, whether every value so far
+ * had the same type. Recording is a counter bump and a comparison per
+ * operand, so profiling is always on.
+ *
+ * A value's type is its Java class for numbers, strings and Booleans, and
+ * a declaration for instances and functions: the {@link Stmt.Class} of an
+ * instance's class and a function's {@link Stmt.Function}. So a call site
+ * that always calls the same function is monomorphic even though every
+ * closure is a new object, and a tree that outlives its interpreter in a
+ * {@link ScriptCache} doesn't keep that interpreter's classes reachable.
+ *
+ * Updates aren't synchronized. A tree run on several threads at once, as
+ * the parallel natives do, may lose a few counts, or record one type for
+ * an operand that also saw another. Both are harmless: the counts only
+ * rank nodes, and optimized code guards every type it speculates on and
+ * deoptimizes when the guard fails.
+ */
+final class TypeProfile {
+
+    private static final Object NIL = new Object();
+    private static final Object POLYMORPHIC = new Object();
+
+    private final Object[] types;
+    private long executions = 0;
+
+    TypeProfile(int operands) {
+        this.types = new Object[operands];
+    }
+
+    void record(Object operand) {
+        executions++;
+        record(0, operand);
+    }
+
+    void record(Object left, Object right) {
+        executions++;
+        record(0, left);
+        record(1, right);
+    }
+
+    long executions() {
+        return executions;
+    }
+
+    int operands() {
+        return types.length;
+    }
+
+    /**
+     * Whether the operand has had one type only. False if the node never
+     * ran.
+     */
+    boolean isMonomorphic(int operand) {
+        Object type = types[operand];
+        return type != null && type != POLYMORPHIC;
+    }
+
+    /**
+     * The one type the operand has had, as described above, or null if it
+     * isn't monomorphic.
+     */
+    Object type(int operand) {
+        return isMonomorphic(operand) ? types[operand] : null;
+    }
+
+    /**
+     * The type the operand has had, as a script would name it, or
+     * "polymorphic" or "unseen".
+     */
+    String describe(int operand) {
+        return describe(types[operand]);
+    }
+
+    // Only stores when the state changes, since a reference store into a
+    // long-lived node costs a GC write barrier.
+    private void record(int operand, Object value) {
+        Object seen = types[operand];
+        if (seen == POLYMORPHIC) {
+            return;
+        }
+
+        Object type = typeOf(value);
+        if (seen == type) {
+            return;
+        }
+        types[operand] = seen == null ? type : POLYMORPHIC;
+    }
+
+    private static Object typeOf(Object value) {
+        if (value instanceof Double) {
+            return Double.class;
+        }
+        if (value == null) {
+            return NIL;
+        }
+        if (value instanceof LoxInstance instance) {
+            return instance.klass.declaration;
+        }
+        if (value instanceof LoxFunction function) {
+            return function.declaration;
+        }
+        if (value instanceof LoxString) {
+            return String.class; // Just another string to a script.
+        }
+        if (value instanceof LoxClass) {
+            // Not the class itself, which stands for its instances.
+            return LoxClass.class;
+        }
+        return value.getClass();
+    }
+
+    private static String describe(Object type) {
+        if (type == null) {
+            return "unseen";
+        } else if (type == POLYMORPHIC) {
+            return "polymorphic";
+        } else if (type == NIL) {
+            return "nil";
+        } else if (type instanceof Stmt.Class klass) {
+            return klass.name().lexeme() + " instance";
+        } else if (type instanceof Stmt.Function function) {
+            return "<fn " + function.name().lexeme() + ">";
+        } else if (type == LoxClass.class) {
+            return "class";
+        } else if (type == Double.class) {
+            return "number";
+        } else if (type == String.class) {
+            return "string";
+        } else if (type == Boolean.class) {
+            return "boolean";
+        } else if (type == LoxArray.class) {
+            return "array";
+        } else if (type == LoxMap.class) {
+            return "map";
+        } else if (type == Channel.class) {
+            return "channel";
+        }
+        return "native";
+    }
+}
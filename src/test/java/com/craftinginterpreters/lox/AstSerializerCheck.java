@@ -0,0 +1,89 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that a truncated or corrupt .loxc file is rejected with an
+ * IOException, which the caller treats as a stale cache, and never with
+ * an unchecked exception or error.
+ *
+ * Run it with test.sh at the top of the repository.
+ */
+final class AstSerializerCheck {
+
+    private static final String SOURCE = """
+            class A { init(x) { this.x = x; } get() { return this.x; } }
+            fun f(a, b) { var s = "a string literal"; return a + b; }
+            print f(1, 2) + A(3).get();
+            """;
+
+    private static int failures = 0;
+
+    private AstSerializerCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] source = SOURCE.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = AstSerializer.hash(source);
+        CompiledScript script = new ScriptCache(1, Long.MAX_VALUE).get(source)
+                .script();
+
+        Path dir = Files.createTempDirectory("loxc");
+        Path path = dir.resolve("check.loxc");
+        try {
+            AstSerializer.store(path, hash, script);
+            byte[] file = Files.readAllBytes(path);
+            check("an intact file loads", load(path, hash) == Result.LOADED);
+
+            for (int length = 0; length < file.length; length++) {
+                Files.write(path, Arrays.copyOf(file, length));
+                check("truncated to " + length + " bytes",
+                        load(path, hash) != Result.CRASHED);
+            }
+
+            for (int i = 0; i < file.length; i++) {
+                for (int value : new int[] { 0x00, 0x7f, 0x80, 0xff }) {
+                    byte[] corrupt = file.clone();
+                    corrupt[i] = (byte) value;
+                    Files.write(path, corrupt);
+                    check("byte " + i + " set to " + value,
+                            load(path, hash) != Result.CRASHED);
+                }
+            }
+        }
+        finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+
+        System.out.println("AstSerializer: " + failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private enum Result { LOADED, STALE, CRASHED }
+
+    private static Result load(Path path, byte[] hash) {
+        try {
+            return AstSerializer.load(path, hash) != null
+                    ? Result.LOADED : Result.STALE;
+        }
+        catch (IOException e) {
+            return Result.STALE;
+        }
+        catch (RuntimeException | Error e) {
+            System.out.println("  " + e);
+            return Result.CRASHED;
+        }
+    }
+
+    private static void check(String what, boolean passed) {
+        if (!passed) {
+            failures++;
+            System.out.println("FAIL AstSerializer " + what);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times parsing a generated script with the scanner inline and with it on
+ * its own thread, as --pipeline does. The overlap needs at least two
+ * cores; on one, the pipelined front end can only be as fast as the
+ * plain one, less the cost of handing tokens over.
+ *
+ * <pre>
+ * mvn -B -q test-compile
+ * java --enable-preview -cp target/classes:target/test-classes \
+ *     com.craftinginterpreters.lox.PipelineBenchmark [functions] [rounds]
+ * </pre>
+ */
+final class PipelineBenchmark {
+
+    private PipelineBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int functions = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        byte[] source = script(functions);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(source.length / 1024 + " KB script, " + cores
+                + (cores == 1 ? " core" : " cores"));
+        if (cores < 2) {
+            System.out.println("Warning: needs at least two cores to show "
+                    + "scanning and parsing overlap.");
+        }
+
+        // The first rounds warm up the JIT and aren't counted.
+        long[] plain = new long[rounds];
+        long[] pipelined = new long[rounds];
+        for (int i = -rounds / 2; i < rounds; i++) {
+            long plainTime = time(source, functions, false);
+            long pipelinedTime = time(source, functions, true);
+            if (i >= 0) {
+                plain[i] = plainTime;
+                pipelined[i] = pipelinedTime;
+            }
+        }
+
+        System.out.println("inline:    median " + median(plain) + " ms");
+        System.out.println("pipelined: median " + median(pipelined) + " ms");
+    }
+
+    // Milliseconds to parse the source, which declares that many functions.
+    private static long time(byte[] source, int functions, boolean pipelined)
+            throws IOException {
+        ErrorList errors = new ErrorList();
+        long start = System.nanoTime();
+        List<Stmt> statements;
+        if (pipelined) {
+            try (PipelinedTokenSource tokens = new PipelinedTokenSource(
+                    reporter -> new Scanner(
+                            new ByteArrayInputStream(source), reporter),
+                    errors)) {
+                statements = new Parser(tokens, null, errors).parse();
+            }
+        } else {
+            statements = new Parser(new Scanner(
+                    new ByteArrayInputStream(source), errors), null, errors)
+                    .parse();
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        if (errors.hadError() || statements.size() != functions) {
+            throw new IllegalStateException("The script didn't parse.");
+        }
+        return elapsed;
+    }
+
+    private static byte[] script(int functions) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            builder.append("// Function number ").append(i).append(".\n")
+                    .append("fun f").append(i).append("(a, b) {\n")
+                    .append("  var s = \"a string literal\";\n")
+                    .append("  for (var i = 0; i < a; i = i + 1) {\n")
+                    .append("    if (i > b and s != nil) s = s + \"x\";\n")
+                    .append("  }\n")
+                    .append("  return a * 2.5 + b - ").append(i).append(";\n")
+                    .append("}\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,212 @@
+package com.craftinginterpreters.lox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs every script in a directory in each of the interpreter's modes and
+ * checks what it prints against the expectations in its comments:
+ *
+ * <pre>
+ * // expect: output                    a line printed to stdout
+ * // expect runtime error: message     a runtime error on this line
+ * // expect error: message             a line printed to stderr
+ * // flags: --fuel=1000                options added to every run
+ * </pre>
+ *
+ * A script expecting a runtime error must exit with 70, one expecting any
+ * other error with 65, and any other with 0. Each script runs in a
+ * directory of its own, so the second default run reads the .loxc cache
+ * the first one wrote. The common ForkJoinPool is given four threads so
+ * that the parallel natives run in parallel even on one core.
+ *
+ * Run it with test.sh at the top of the repository.
+ */
+final class RegressionCheck {
+
+    private static final List<List<String>> MODES = List.of(
+            List.of(),
+            List.of(), // Again, from the .loxc cache.
+            List.of("--optimize"),
+            List.of("--optimize=2"),
+            List.of("--lazy"),
+            List.of("--lazy", "--optimize=2"),
+            List.of("--stream"),
+            List.of("--pipeline"),
+            List.of("--differential"));
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private record Expected(List<String> output, List<String> errors,
+            int exitCode, List<String> flags) {
+
+    }
+
+    private RegressionCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "src/test/lox");
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(directory)) {
+            scripts = files.filter(path -> path.toString().endsWith(".lox"))
+                    .sorted().toList();
+        }
+
+        int failures = 0;
+        for (Path script : scripts) {
+            failures += check(script);
+        }
+
+        System.out.println(scripts.size() + " scripts, " + MODES.size()
+                + " modes, " + failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static int check(Path script) throws Exception {
+        Expected expected = parse(script);
+        Path directory = Files.createTempDirectory("lox-check");
+        Path copy = directory.resolve(script.getFileName());
+        Files.copy(script, copy);
+
+        int failures = 0;
+        try {
+            for (List<String> mode : MODES) {
+                List<String> options = new ArrayList<>(mode);
+                options.addAll(expected.flags());
+                String failure = run(copy, options, expected);
+                if (failure != null) {
+                    failures++;
+                    System.out.println("FAIL " + script.getFileName() + " "
+                            + options + "\n" + failure);
+                }
+            }
+        }
+        finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+        return failures;
+    }
+
+    private static Expected parse(Path script) throws IOException {
+        List<String> output = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        List<String> flags = new ArrayList<>();
+        int exitCode = 0;
+
+        List<String> lines = Files.readAllLines(script);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf("// ");
+            if (comment < 0) {
+                continue;
+            }
+            String text = line.substring(comment + 3);
+            if (text.startsWith("expect: ")) {
+                output.add(text.substring("expect: ".length()));
+            } else if (text.startsWith("expect runtime error: ")) {
+                errors.add(text.substring("expect runtime error: ".length()));
+                errors.add("[line " + (i + 1) + "]");
+                exitCode = 70;
+            } else if (text.startsWith("expect error: ")) {
+                errors.add(text.substring("expect error: ".length()));
+                exitCode = exitCode == 0 ? 65 : exitCode;
+            } else if (text.startsWith("flags: ")) {
+                flags.addAll(Arrays.asList(
+                        text.substring("flags: ".length()).split(" ")));
+            }
+        }
+        return new Expected(output, errors, exitCode, flags);
+    }
+
+    // A description of how the run went wrong, or null if it didn't.
+    private static String run(Path script, List<String> options,
+            Expected expected) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java")
+                        .toString(),
+                "--enable-preview",
+                "-Djava.util.concurrent.ForkJoinPool.common.parallelism=4",
+                "-cp", classPath(),
+                Lox.class.getName()));
+        command.addAll(options);
+        command.add(script.toString());
+
+        Path out = Files.createTempFile("lox-out", ".txt");
+        Path err = Files.createTempFile("lox-err", ".txt");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .directory(script.getParent().toFile())
+                    .redirectInput(ProcessBuilder.Redirect.from(
+                            new File("/dev/null")))
+                    .redirectOutput(out.toFile())
+                    .redirectError(err.toFile())
+                    .start();
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return "timed out after " + TIMEOUT_SECONDS + " s";
+            }
+
+            List<String> output = Files.readAllLines(out,
+                    StandardCharsets.UTF_8);
+            List<String> errors = Files.readAllLines(err,
+                    StandardCharsets.UTF_8);
+            StringBuilder failure = new StringBuilder();
+            if (!output.equals(expected.output())) {
+                failure.append(diff("stdout", expected.output(), output));
+            }
+            if (!errors.equals(expected.errors())) {
+                failure.append(diff("stderr", expected.errors(), errors));
+            }
+            if (process.exitValue() != expected.exitCode()) {
+                failure.append("  exit code ").append(process.exitValue())
+                        .append(", expected ").append(expected.exitCode())
+                        .append('\n');
+            }
+            return failure.length() == 0 ? null : failure.toString();
+        }
+        finally {
+            Files.delete(out);
+            Files.delete(err);
+        }
+    }
+
+    // The class path of this run, made absolute since the interpreter
+    // runs in the script's directory.
+    private static String classPath() {
+        return Arrays.stream(System.getProperty("java.class.path")
+                        .split(File.pathSeparator))
+                .map(entry -> Paths.get(entry).toAbsolutePath().toString())
+                .reduce((a, b) -> a + File.pathSeparator + b).orElse("");
+    }
+
+    private static String diff(String stream, List<String> expected,
+            List<String> actual) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+            String want = i < expected.size() ? expected.get(i) : "<none>";
+            String got = i < actual.size() ? actual.get(i) : "<none>";
+            if (!want.equals(got)) {
+                builder.append("  ").append(stream).append(" line ")
+                        .append(i + 1).append(": expected '").append(want)
+                        .append("', got '").append(got).append("'\n");
+                break;
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,147 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Checks that {@link ScriptCache} hits on the same source, evicts the
+ * least recently used entry when over either bound, returns compile and
+ * runtime errors to the call that had them, and keeps working after one.
+ * Also checks that a script's type feedback can be read back.
+ *
+ * Run it with test.sh at the top of the repository.
+ */
+final class ScriptCacheCheck {
+
+    private static int failures = 0;
+
+    private ScriptCacheCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        hits();
+        evictsByCount();
+        evictsBySize();
+        errors();
+        runs();
+        profiles();
+
+        System.out.println("ScriptCache: " + failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void hits() throws Exception {
+        ScriptCache cache = new ScriptCache(4, Long.MAX_VALUE);
+        CompiledScript first = cache.get(source("print 1;")).script();
+        CompiledScript second = cache.get(source("print 1;")).script();
+        check("the same source hits", first == second);
+        check("a hit is counted", cache.stats().hits() == 1);
+        check("a miss is counted", cache.stats().misses() == 1);
+        check("one entry is kept", cache.stats().entries() == 1);
+
+        cache.clear();
+        check("clear empties the cache", cache.stats().entries() == 0
+                && cache.stats().estimatedBytes() == 0);
+        check("a cleared entry is compiled again",
+                cache.get(source("print 1;")).script() != first);
+    }
+
+    private static void evictsByCount() throws Exception {
+        ScriptCache cache = new ScriptCache(2, Long.MAX_VALUE);
+        CompiledScript a = cache.get(source("print \"a\";")).script();
+        cache.get(source("print \"b\";"));
+        // Touch a so that b is the least recently used.
+        cache.get(source("print \"a\";"));
+        cache.get(source("print \"c\";"));
+        check("evicts past the entry bound", cache.stats().evictions() == 1
+                && cache.stats().entries() == 2);
+        check("keeps the recently used entry",
+                cache.get(source("print \"a\";")).script() == a);
+        long misses = cache.stats().misses();
+        cache.get(source("print \"b\";"));
+        check("the evicted entry misses", cache.stats().misses() == misses + 1);
+    }
+
+    private static void evictsBySize() throws Exception {
+        byte[] small = source("print 1;");
+        long size = ScriptCache.estimateSize(
+                new ScriptCache(1, Long.MAX_VALUE).get(small).script());
+
+        // Room for two small scripts but not three.
+        ScriptCache cache = new ScriptCache(100, size * 2 + size / 2);
+        cache.get(source("print 1;")).script();
+        cache.get(source("print 2;"));
+        check("two scripts fit", cache.stats().evictions() == 0);
+        cache.get(source("print 3;"));
+        check("evicts past the byte bound", cache.stats().evictions() == 1
+                && cache.stats().entries() == 2
+                && cache.stats().estimatedBytes() <= size * 2 + size / 2);
+
+        // An entry larger than the bound is still kept on its own.
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append("print ").append(i).append(";\n");
+        }
+        CompiledScript large = cache.get(source(big.toString())).script();
+        check("keeps an entry over the bound", cache.stats().entries() == 1
+                && cache.get(source(big.toString())).script() == large);
+    }
+
+    private static void errors() throws Exception {
+        ScriptCache cache = new ScriptCache(4, Long.MAX_VALUE);
+        Compilation failed = cache.get(source("print ;"));
+        check("a script with an error doesn't compile", !failed.succeeded()
+                && failed.script() == null);
+        check("the call returns its errors", failed.errors().equals(List.of(
+                "[line 1] Error at ';': Expect expression.")));
+        check("the error isn't reported globally", !Lox.hadError);
+        check("a script with an error isn't cached",
+                cache.stats().entries() == 0);
+        Compilation compiled = cache.get(source("print 2;"));
+        check("a later script still compiles", compiled.succeeded()
+                && compiled.errors().isEmpty());
+    }
+
+    private static void runs() throws Exception {
+        ScriptCache cache = new ScriptCache(4, Long.MAX_VALUE);
+        Interpreter interpreter = new Interpreter();
+        check("a script runs", interpreter.run(cache.get(
+                source("var a = 1; fun f() { return a; }")).script())
+                .isEmpty());
+        check("a later run sees its globals", interpreter.run(cache.get(
+                source("if (f() != 1) nil();")).script()).isEmpty());
+        check("the run returns its runtime error", interpreter.run(cache.get(
+                source("a = 2;\n a();")).script()).equals(List.of(
+                "Can only call functions and classes.\n[line 2]")));
+        check("a task's runtime error is returned too", interpreter.run(
+                cache.get(source("fun g() { nil(); } spawn(g);")).script())
+                .equals(List.of(
+                "Can only call functions and classes.\n[line 1]")));
+        check("the errors aren't reported globally", !Lox.hadRuntimeError);
+    }
+
+    private static void profiles() throws Exception {
+        CompiledScript script = new ScriptCache(4, Long.MAX_VALUE).get(source(
+                "class P { init(x) { this.x = x; } }\n"
+                + "var i = 0; while (i < 3) { P(i).x; i = i + 1; }"))
+                .script();
+        check("nothing has run yet", Profiles.of(script).stream()
+                .allMatch(entry -> entry.executions() == 0));
+        new Interpreter().run(script);
+        check("a run's type feedback is read back",
+                Profiles.of(script).contains(new Profiles.Entry(
+                        Profiles.Kind.GET, 2, "'.x'", 3,
+                        List.of("P instance"))));
+    }
+
+    private static byte[] source(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(String what, boolean passed) {
+        if (!passed) {
+            failures++;
+            System.out.println("FAIL ScriptCache " + what);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link ScriptPool} keeps running other scripts on a single
+ * worker while one loops forever, and that fuel ends a script.
+ *
+ * Run it with test.sh at the top of the repository.
+ */
+final class ScriptPoolCheck {
+
+    private static final long SECONDS = 30;
+
+    private static int failures = 0;
+
+    private ScriptPoolCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ScriptCache cache = new ScriptCache(8, Long.MAX_VALUE);
+        try ( ScriptPool pool = new ScriptPool(1)) {
+            // Neither ever ends, and nothing else could run on the one
+            // worker without preemption.
+            pool.submit(compile(cache, "while (true) {}"), Long.MAX_VALUE);
+            pool.submit(compile(cache,
+                    "fun f() { while (true) {} } f();"), Long.MAX_VALUE);
+
+            List<Future<List<String>>> finite = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                finite.add(pool.submit(compile(cache,
+                        "var i = 0; while (i < 100000) i = i + 1;"),
+                        Long.MAX_VALUE));
+            }
+            for (Future<List<String>> future : finite) {
+                check("a script ends beside ones that loop",
+                        future.get(SECONDS, TimeUnit.SECONDS).isEmpty());
+            }
+
+            Future<List<String>> fueled = pool.submit(
+                    compile(cache, "while (true) {}"), 100_000);
+            check("fuel ends a script that loops", fueled.get(
+                    SECONDS, TimeUnit.SECONDS).equals(
+                    List.of("Out of fuel.\n[line 1]")));
+
+            Future<List<String>> tasks = pool.submit(compile(cache, """
+                    var c = channel(1);
+                    fun f() { send(c, 1); }
+                    spawn(f);
+                    if (receive(c) != 1) nil();
+                    """), Long.MAX_VALUE);
+            check("tasks and channels work in a pool",
+                    tasks.get(SECONDS, TimeUnit.SECONDS).isEmpty());
+        }
+
+        System.out.println("ScriptPool: " + failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static CompiledScript compile(ScriptCache cache, String source)
+            throws Exception {
+        return cache.get(source.getBytes(StandardCharsets.UTF_8)).script();
+    }
+
+    private static void check(String what, boolean passed) {
+        if (!passed) {
+            failures++;
+            System.out.println("FAIL ScriptPool " + what);
+        }
+    }
+}
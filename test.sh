@@ -0,0 +1,13 @@
+#!/bin/sh
+# Builds the interpreter and runs the regression checks in src/test.
+set -e
+cd "$(dirname "$0")"
+mvn -B -q test-compile
+java --enable-preview -cp target/classes:target/test-classes \
+    com.craftinginterpreters.lox.RegressionCheck src/test/lox
+java --enable-preview -cp target/classes:target/test-classes \
+    com.craftinginterpreters.lox.ScriptCacheCheck
+java --enable-preview -cp target/classes:target/test-classes \
+    com.craftinginterpreters.lox.AstSerializerCheck
+java --enable-preview -cp target/classes:target/test-classes \
+    com.craftinginterpreters.lox.ScriptPoolCheck